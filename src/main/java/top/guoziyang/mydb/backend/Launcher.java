@@ -7,6 +7,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -30,46 +31,69 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("extent", true, "-extent 4MB");
+        options.addOption("pagesize", true, "-pagesize 8KB");
+        options.addOption("compress", false, "-compress");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parseOptions(cmd));
             return;
         }
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseOptions(cmd));
             return;
         }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("Usage: launcher (open|create) DBPath [-mem 64MB] [-mmap] [-extent 4MB] [-pagesize 8KB] [-compress]");
+    }
+
+    // 解析数据文件相关的参数
+    private static PageCacheOptions parseOptions(CommandLine cmd) {
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.mmap = cmd.hasOption("mmap");
+        opts.compress = cmd.hasOption("compress");
+        if (cmd.hasOption("extent")) {
+            opts.extentSize = (int) parseMem(cmd.getOptionValue("extent"));
+        }
+        // 页大小只在创建数据库时生效
+        if (cmd.hasOption("pagesize")) {
+            opts.pageSize = (int) parseMem(cmd.getOptionValue("pagesize"));
+        }
+        return opts;
     }
 
     /**
      * 创建新的数据库
      *
      * @param path 数据库路径
+     * @param opts 数据文件的访问方式、扩展区段大小和页大小
      */
-    private static void createDB(String path) {
+    private static void createDB(String path, PageCacheOptions opts) {
         // 创建事务管理器
         TransactionManager tm = TransactionManager.create(path);
         // 创建数据管理器
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, opts);
         // 创建版本管理器
         VersionManager vm = new VersionManagerImpl(tm, dm);
         // 创建表管理器
-        TableManager.create(path, vm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        tbm.close();
         tm.close();
         dm.close();
     }
 
     /**
      * 启动已有的数据库
+     *
+     * @param opts 数据文件的访问方式和扩展区段大小
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, PageCacheOptions opts) {
         // 打开事务管理器
         TransactionManager tm = TransactionManager.open(path);
         // 打开数据管理器，传入路径、内存大小和事务管理器
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, opts);
         // 创建版本管理器，传入事务管理器和数据管理器
         VersionManager vm = new VersionManagerImpl(tm, dm);
         // 打开表管理器，传入路径、版本管理器和数据管理器
@@ -1,70 +1,141 @@
 package top.guoziyang.mydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.primitive.ConcurrentLongObjectMap;
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 命中路径不加锁：直接在 key 所在段的哈希表中找到资源，用 CAS 增加其引用计数。
+ * 只有未命中加载和驱逐才需要加锁，且锁按 key 分段，不同段互不阻塞。
+ * 各段的哈希表以原始 long 为键，查找时不装箱、不分配对象。
+ *
+ * 不指定替换策略时，引用计数归零的资源立即被驱逐；
+ * 指定替换策略时，资源在引用归零后仍常驻缓存，只有缓存满时才由策略选出未被引用的资源驱逐。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 资源的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private static final int SEGMENT_NUM = 16;          // 分段数，必须是2的幂
+
+    private Segment<T>[] segments;                      // 分段锁、该段缓存的数据及正在加载的资源
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数（包括正在加载的）
+    private AtomicInteger loadingCount;                 // 正在加载的资源数
+    private AtomicReference<CompletableFuture<Void>> loadDone; // 下一次有加载结束时完成，缓存满时在其上等待
+
+    private ReplacementPolicy policy;                   // 替换策略，为 null 时不保留未被引用的资源
+    private Lock evictLock;                             // 串行化对替换策略的调用
+
+    /**
+     * 缓存中的一项资源
+     * references > 0 表示正在被引用，0 表示未被引用，-1 表示已被驱逐、不可再被引用
+     */
+    static class Holder<T> {
+        final T obj;
+        final AtomicInteger references;
+        volatile boolean referenced;    // 自上次被时钟扫过后是否被访问过
+
+        Holder(T obj) {
+            this.obj = obj;
+            this.references = new AtomicInteger(1);
+        }
+
+        // 引用计数加一，资源已被驱逐时返回 false
+        boolean retain() {
+            while(true) {
+                int ref = references.get();
+                if(ref < 0) return false;
+                if(references.compareAndSet(ref, ref + 1)) return true;
+            }
+        }
+    }
+
+    static class Segment<T> {
+        final Lock lock = new ReentrantLock();
+        final ConcurrentLongObjectMap<Holder<T>> cache = new ConcurrentLongObjectMap<>();   // 实际缓存的数据及其引用计数，读无锁，写需持有 lock
+        final LongObjectMap<CompletableFuture<T>> getting = new LongObjectMap<>(); // 正在被加载的资源，等待者在 future 上阻塞
+    }
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public AbstractCache(int maxResource, ReplacementPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        this.evictLock = new ReentrantLock();
+        segments = newSegments(SEGMENT_NUM);
+        for (int i = 0; i < SEGMENT_NUM; i ++) {
+            segments[i] = new Segment<>();
+        }
+        count = new AtomicInteger(0);
+        loadingCount = new AtomicInteger(0);
+        loadDone = new AtomicReference<>(new CompletableFuture<>());
     }
 
     /** 尝试获取某一资源
+     *
+     * 同一资源同时只会有一个线程执行 getForCache，其余请求该资源的线程在对应的 future 上等待，
+     * 加载完成后立即被唤醒；加载失败时异常会传递给所有等待者
      *
      * @param key
      * @return
      * @throws Exception
      */
     protected T get(long key) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h = seg.cache.get(key);
+        if(h != null && h.retain()) {
+            // 资源在缓存中，直接返回
+            touch(h);
+            return h.obj;
+        }
+
+        CompletableFuture<T> loading;
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);  // 等待后再尝试获取
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                continue;
+            seg.lock.lock();
+            h = seg.cache.get(key);
+            if(h != null && h.retain()) {
+                seg.lock.unlock();
+                touch(h);
+                return h.obj;
             }
-
-            if(cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            CompletableFuture<T> inFlight = seg.getting.get(key);
+            if(inFlight != null) {
+                // 请求的资源正在被其他线程获取，等待其加载完成后再重试
+                seg.lock.unlock();
+                awaitLoading(inFlight);
+                continue;
             }
 
             // 尝试获取该资源 从磁盘中加载资源到内存中
-            if(maxResource > 0 && count == maxResource) {
-                // 如果缓存已满，抛出异常
-                lock.unlock();
-                throw Error.CacheFullException;
+            if(!reserve()) {
+                seg.lock.unlock();
+                // 缓存已满，按替换策略驱逐一个未被引用的资源后重试；无法驱逐时抛出异常
+                if(policy == null || !evictOne()) {
+                    CompletableFuture<Void> done = loadDone.get();
+                    if(loadingCount.get() > 0) {
+                        // 其他线程正在加载的资源占着位置，等任一加载结束后再试，那时可能就能驱逐（如预读的资源）
+                        done.join();
+                        continue;
+                    }
+                    throw Error.CacheFullException;
+                }
+                continue;
             }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
+            loading = new CompletableFuture<>();
+            seg.getting.put(key, loading);
+            seg.lock.unlock();
+            loadingCount.incrementAndGet();
             break;
         }
         // 尝试获取资源
@@ -72,40 +143,239 @@ public abstract class AbstractCache<T> {
         try {
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            loadFailed(seg, key, loading, e);
             throw e;
         }
-        // 将获取到的资源添加到缓存中，并设置引用计数为1
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        
+        loaded(seg, key, loading, obj);
         return obj;
     }
 
+    /**
+     * 异步获取某一资源，返回时资源已被引用一次
+     *
+     * 命中时直接返回已完成的 future；未命中时由 getForCacheAsync 发起加载，调用线程不等待 I/O。
+     * 同一资源正在被加载时，在加载完成后重新获取。缓存已满时的驱逐仍在调用线程中进行，
+     * 无法驱逐而又有加载在进行时，在任一加载结束后重新获取。
+     */
+    protected CompletableFuture<T> getAsync(long key) {
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h = seg.cache.get(key);
+        if(h != null && h.retain()) {
+            touch(h);
+            return CompletableFuture.completedFuture(h.obj);
+        }
+
+        CompletableFuture<T> loading;
+        while(true) {
+            seg.lock.lock();
+            h = seg.cache.get(key);
+            if(h != null && h.retain()) {
+                seg.lock.unlock();
+                touch(h);
+                return CompletableFuture.completedFuture(h.obj);
+            }
+            CompletableFuture<T> inFlight = seg.getting.get(key);
+            if(inFlight != null) {
+                seg.lock.unlock();
+                return inFlight.thenCompose(v -> getAsync(key));
+            }
+            if(!reserve()) {
+                seg.lock.unlock();
+                if(policy == null || !evictOne()) {
+                    CompletableFuture<Void> done = loadDone.get();
+                    if(loadingCount.get() > 0) {
+                        // 不阻塞调用线程，等任一加载结束后再重新获取
+                        return done.thenCompose(v -> getAsync(key));
+                    }
+                    return CompletableFuture.failedFuture(Error.CacheFullException);
+                }
+                continue;
+            }
+            loading = new CompletableFuture<>();
+            seg.getting.put(key, loading);
+            seg.lock.unlock();
+            loadingCount.incrementAndGet();
+            break;
+        }
+
+        CompletableFuture<T> io;
+        try {
+            io = getForCacheAsync(key);
+        } catch(Exception e) {
+            io = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        io.whenComplete((obj, err) -> {
+            if(err != null) {
+                Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                loadFailed(seg, key, loading, cause);
+                result.completeExceptionally(cause);
+            } else {
+                loaded(seg, key, loading, obj);
+                result.complete(obj);
+            }
+        });
+        return result;
+    }
+
+    // 将加载完成的资源添加到缓存中，并设置引用计数为1
+    private void loaded(Segment<T> seg, long key, CompletableFuture<T> loading, T obj) {
+        seg.lock.lock();
+        seg.getting.remove(key);
+        seg.cache.put(key, new Holder<>(obj));
+        seg.lock.unlock();
+        if(policy != null) {
+            evictLock.lock();
+            policy.onLoad(key);
+            evictLock.unlock();
+        }
+        loadFinished();
+        loading.complete(obj);
+    }
+
+    // 加载失败，归还占用的位置，并把异常传递给等待者
+    private void loadFailed(Segment<T> seg, long key, CompletableFuture<T> loading, Throwable e) {
+        seg.lock.lock();
+        count.decrementAndGet();
+        seg.getting.remove(key);
+        seg.lock.unlock();
+        loadFinished();
+        loading.completeExceptionally(e);
+    }
+
+    /**
+     * 一次加载结束，唤醒因缓存已满而等待的线程
+     * 先减计数再换出 future：等待者若取到的是新 future，必然能看到减少后的计数，不会错过唤醒
+     */
+    private void loadFinished() {
+        loadingCount.decrementAndGet();
+        loadDone.getAndSet(new CompletableFuture<>()).complete(null);
+    }
+
+    // 为即将加载的资源占用一个位置，缓存已满时返回 false
+    private boolean reserve() {
+        while(true) {
+            int c = count.get();
+            if(maxResource > 0 && c >= maxResource) return false;
+            if(count.compareAndSet(c, c + 1)) return true;
+        }
+    }
+
+    /**
+     * 等待其他线程对同一资源的加载结束，加载失败时将原始异常抛给等待者
+     */
+    private void awaitLoading(CompletableFuture<T> inFlight) throws Exception {
+        try {
+            inFlight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw e;
+        }
+    }
+
     /**
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h = seg.cache.get(key);
+        if(h.references.decrementAndGet() > 0 || policy != null) {
+            // 仍被引用，或者由替换策略决定何时驱逐
+            return;
+        }
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if(ref == 0) {
-                T obj = cache.get(key);   // 从缓存中获取资源
-                releaseForCache(obj);    // 处理资源的释放
-                references.remove(key); // 从引用计数的映射中移除资源
-                cache.remove(key);     // 从缓存中移除资源
-                count --;             // 将缓存中的资源计数减一
-            } else {
-                references.put(key, ref);
+            // 引用计数归零后可能又被其他线程重新引用，只有 CAS 成功才真正驱逐
+            if(h.references.compareAndSet(0, -1)) {
+                seg.cache.remove(key);   // 从缓存中移除资源
+                count.decrementAndGet(); // 将缓存中的资源计数减一
+                releaseForCache(h.obj);  // 处理资源的释放
             }
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    // 记录一次访问，供替换策略给予第二次机会
+    private void touch(Holder<T> h) {
+        if(policy != null && !h.referenced) {
+            h.referenced = true;
+        }
+    }
+
+    // 由替换策略选出一个资源驱逐
+    private boolean evictOne() {
+        evictLock.lock();
+        try {
+            return policy.evict(this::tryEvict);
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private int tryEvict(long key, boolean secondChance) {
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h = seg.cache.get(key);
+        if(h == null) {
+            return ReplacementPolicy.ABSENT;
+        }
+        if(h.references.get() > 0) {
+            return ReplacementPolicy.PINNED;
+        }
+        if(secondChance && h.referenced) {
+            h.referenced = false;
+            return ReplacementPolicy.REFERENCED;
+        }
+        seg.lock.lock();
+        try {
+            if(h.references.compareAndSet(0, -1)) {
+                seg.cache.remove(key);
+                count.decrementAndGet();
+                releaseForCache(h.obj);     // 脏资源在这里写回
+                return ReplacementPolicy.EVICTED;
+            }
+            return h.references.get() < 0 ? ReplacementPolicy.ABSENT : ReplacementPolicy.PINNED;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    // 资源是否已在缓存中或正在被加载，不增加引用计数
+    protected boolean isCached(long key) {
+        Segment<T> seg = segmentFor(key);
+        if(seg.cache.get(key) != null) return true;
+        // 加载完成时在锁内从 getting 移入 cache，加锁后两处都要再看一次
+        seg.lock.lock();
+        try {
+            return seg.cache.get(key) != null || seg.getting.get(key) != null;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃一个未被引用的资源，不做写回
+     * 用于资源在数据源中已经失效的情况，例如文件被截断
+     */
+    protected void discard(long key) {
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h = seg.cache.get(key);
+        if(h == null) return;
+        seg.lock.lock();
+        try {
+            if(!h.references.compareAndSet(0, -1)) return;
+            seg.cache.remove(key);
+            count.decrementAndGet();
+        } finally {
+            seg.lock.unlock();
+        }
+        if(policy != null) {
+            evictLock.lock();
+            policy.onRemove(key);
+            evictLock.unlock();
         }
     }
 
@@ -113,25 +383,43 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+        }
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            for (Segment<T> seg : segments) {
+                seg.cache.forEachValue(h -> releaseForCache(h.obj));
+                seg.cache.clear();
             }
+            count.set(0);
         } finally {
-            lock.unlock();
+            for (Segment<T> seg : segments) {
+                seg.lock.unlock();
+            }
         }
     }
 
+    // 泛型数组不能直接创建，先创建通配符数组再转换
+    @SuppressWarnings("unchecked")
+    private static <T> Segment<T>[] newSegments(int n) {
+        return (Segment<T>[]) new Segment<?>[n];
+    }
+
+    private Segment<T> segmentFor(long key) {
+        int h = (int)(key ^ (key >>> 32)) * 0x9E3779B9;
+        return segments[(h >>> 16) & (SEGMENT_NUM - 1)];
+    }
 
     /**
      * 当资源不在缓存时的获取行为
      */
     protected abstract T getForCache(long key) throws Exception;
+    /**
+     * 异步获取资源，默认在调用线程中同步加载
+     */
+    protected CompletableFuture<T> getForCacheAsync(long key) throws Exception {
+        return CompletableFuture.completedFuture(getForCache(key));
+    }
     /**
      * 当资源被驱逐时的写回行为
      */
@@ -0,0 +1,39 @@
+package top.guoziyang.mydb.backend.common;
+
+import top.guoziyang.mydb.backend.common.primitive.LongQueue;
+
+/**
+ * CLOCK 替换策略
+ * 所有资源排成一个环，指针扫过时：被引用的跳过，最近访问过的清除标记后跳过，否则驱逐
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private LongQueue ring = new LongQueue();   // 队头即时钟指针所在位置
+
+    @Override
+    public void onLoad(long key) {
+        ring.add(key);
+    }
+
+    @Override
+    public void onRemove(long key) {
+        ring.remove(key);
+    }
+
+    @Override
+    public boolean evict(Victims victims) {
+        // 最多扫两圈：第一圈清除访问标记，第二圈一定能找到未被引用的资源
+        int steps = ring.size() * 2;
+        for (int i = 0; i < steps && !ring.isEmpty(); i ++) {
+            long key = ring.poll();
+            int res = victims.tryEvict(key, true);
+            if(res == EVICTED) {
+                return true;
+            }
+            if(res != ABSENT) {
+                ring.add(key);      // 指针越过该资源
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,30 @@
+package top.guoziyang.mydb.backend.common;
+
+/**
+ * 缓存替换策略
+ * 只在 AbstractCache 的驱逐锁内被串行调用，实现无需考虑线程安全
+ */
+public interface ReplacementPolicy {
+
+    int EVICTED = 0;        // 资源已被驱逐
+    int PINNED = 1;         // 资源正在被引用，不能驱逐
+    int REFERENCED = 2;     // 资源最近被访问过，本轮给予第二次机会
+    int ABSENT = 3;         // 资源已经不在缓存中
+
+    // 资源被载入缓存
+    void onLoad(long key);
+
+    // 资源被缓存以外的途径移除（如截断文件）
+    void onRemove(long key);
+
+    // 选出一个资源并驱逐，成功返回 true；所有资源都被引用时返回 false
+    boolean evict(Victims victims);
+
+    interface Victims {
+        /**
+         * 尝试驱逐 key
+         * @param secondChance 为 true 时，最近被访问过的资源会清除访问标记并返回 REFERENCED
+         */
+        int tryEvict(long key, boolean secondChance);
+    }
+}
@@ -0,0 +1,93 @@
+package top.guoziyang.mydb.backend.common;
+
+import top.guoziyang.mydb.backend.common.primitive.LongQueue;
+
+/**
+ * 2Q 替换策略（Johnson & Shasha）
+ *
+ * A1in：新载入的资源先进入这个 FIFO 队列，在队列中的重复访问不算数
+ * A1out：从 A1in 淘汰的资源只留下 key，作为"最近见过"的记录
+ * Am：   在 A1out 中的资源再次载入时才进入 Am，Am 按 CLOCK 淘汰
+ *
+ * 全表扫描只访问每个页面一次（或在极短时间内连续访问），这些页面在 A1in 中进出，
+ * 不会挤掉 Am 里 B+ 树内部节点这类真正的热点页面。
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int kin;          // A1in 的目标长度
+    private final int kout;         // A1out 的最大长度
+
+    private final LongQueue a1in;
+    private final LongQueue a1out;
+    private final LongQueue am;
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        this.a1in = new LongQueue(kin);
+        this.a1out = new LongQueue(kout + 1);
+        this.am = new LongQueue(capacity);
+    }
+
+    @Override
+    public void onLoad(long key) {
+        if(a1out.remove(key)) {
+            am.add(key);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        a1in.remove(key);
+        am.remove(key);
+    }
+
+    @Override
+    public boolean evict(Victims victims) {
+        // A1in 超过目标长度时优先从 A1in 淘汰，否则从 Am 淘汰；一边全被引用时再尝试另一边
+        if(a1in.size() > kin || am.isEmpty()) {
+            return evictA1in(victims) || evictAm(victims);
+        }
+        return evictAm(victims) || evictA1in(victims);
+    }
+
+    private boolean evictA1in(Victims victims) {
+        int steps = a1in.size();
+        for (int i = 0; i < steps && !a1in.isEmpty(); i ++) {
+            long key = a1in.poll();
+            int res = victims.tryEvict(key, false);
+            if(res == EVICTED) {
+                remember(key);
+                return true;
+            }
+            if(res != ABSENT) {
+                a1in.add(key);
+            }
+        }
+        return false;
+    }
+
+    private boolean evictAm(Victims victims) {
+        int steps = am.size() * 2;
+        for (int i = 0; i < steps && !am.isEmpty(); i ++) {
+            long key = am.poll();
+            int res = victims.tryEvict(key, true);
+            if(res == EVICTED) {
+                return true;
+            }
+            if(res != ABSENT) {
+                am.add(key);
+            }
+        }
+        return false;
+    }
+
+    private void remember(long key) {
+        a1out.add(key);
+        if(a1out.size() > kout) {
+            a1out.poll();
+        }
+    }
+}
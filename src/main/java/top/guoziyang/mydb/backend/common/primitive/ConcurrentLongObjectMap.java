@@ -0,0 +1,145 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 读无锁的 long 到对象的映射，开放寻址
+ *
+ * 写操作（put、remove、clear）必须由调用者加锁串行化，读操作（get）可以在任意线程无锁进行。
+ * 为了让无锁的读者不会把 key 和 value 配错，一个槽位一旦分配给某个 key，在本张表内就不再给其他 key 使用：
+ * 删除只把 value 置为墓碑，同一 key 再次放入时复用原槽位，墓碑在扩容重建时清理。
+ * 读者可能看到稍旧的状态（例如扩容前的表），调用者需要在加锁后重新确认未命中的情况。
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+
+    private static class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Object> values;    // null 表示空槽，value 先于 key 读、后于 key 写
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table;
+    private int size;               // 有效的键值对数
+    private int used;               // 已分配的槽位数，包括墓碑
+    private int maxFill;
+
+    public ConcurrentLongObjectMap() {
+        this(16);
+    }
+
+    public ConcurrentLongObjectMap(int expected) {
+        allocate(HashCommon.tableSize(expected));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Table t = table;
+        int i = HashCommon.mix(key) & t.mask;
+        while(true) {
+            Object v = t.values.get(i);
+            if(v == null) return null;
+            if(t.keys.get(i) == key) {
+                return v == TOMBSTONE ? null : (V)v;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // 需要调用者加锁
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        Table t = table;
+        int i = HashCommon.mix(key) & t.mask;
+        Object v;
+        while((v = t.values.get(i)) != null) {
+            if(t.keys.get(i) == key) {
+                t.values.set(i, value);
+                if(v == TOMBSTONE) {
+                    size ++;
+                    return null;
+                }
+                return (V)v;
+            }
+            i = (i + 1) & t.mask;
+        }
+        t.keys.set(i, key);
+        t.values.set(i, value);     // 发布槽位，读者读到 value 时一定能读到 key
+        size ++;
+        if(++ used > maxFill) {
+            rehash();
+        }
+        return null;
+    }
+
+    // 需要调用者加锁
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        Table t = table;
+        int i = HashCommon.mix(key) & t.mask;
+        Object v;
+        while((v = t.values.get(i)) != null) {
+            if(t.keys.get(i) == key) {
+                if(v == TOMBSTONE) return null;
+                t.values.set(i, TOMBSTONE);
+                size --;
+                return (V)v;
+            }
+            i = (i + 1) & t.mask;
+        }
+        return null;
+    }
+
+    // 需要调用者加锁
+    public void clear() {
+        allocate(HashCommon.tableSize(16));
+        size = 0;
+        used = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 需要调用者加锁
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        Table t = table;
+        for (int i = 0; i <= t.mask; i ++) {
+            Object v = t.values.get(i);
+            if(v != null && v != TOMBSTONE) action.accept((V)v);
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = new Table(capacity);
+        maxFill = HashCommon.maxFill(capacity);
+    }
+
+    // 按有效元素数重建新表再整体发布，旧表保持不变，正在读旧表的线程不受影响
+    private void rehash() {
+        Table old = table;
+        Table t = new Table(HashCommon.tableSize(Math.max(size * 2, 16)));
+        for (int j = 0; j <= old.mask; j ++) {
+            Object v = old.values.get(j);
+            if(v == null || v == TOMBSTONE) continue;
+            long k = old.keys.get(j);
+            int i = HashCommon.mix(k) & t.mask;
+            while(t.values.get(i) != null) i = (i + 1) & t.mask;
+            t.keys.set(i, k);
+            t.values.set(i, v);
+        }
+        used = size;
+        maxFill = HashCommon.maxFill(t.mask + 1);
+        table = t;
+    }
+}
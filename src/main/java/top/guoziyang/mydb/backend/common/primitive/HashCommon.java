@@ -0,0 +1,48 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+/**
+ * 开放寻址哈希表的公共部分
+ *
+ * 所有表都使用线性探测，key 为 0 的槽表示空槽，因此 key 0 需要各个表单独存放
+ * 删除时不留墓碑，而是把后续元素前移
+ */
+class HashCommon {
+
+    static final float LOAD_FACTOR = 0.75f;
+
+    // 打散 key 的低位，避免连续的 pgno、xid 聚集在一起
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    // 能容纳 expected 个元素的表长，总是 2 的幂
+    static int tableSize(int expected) {
+        long need = (long)Math.ceil(Math.max(expected, 2) / LOAD_FACTOR);
+        int n = Integer.highestOneBit((int)Math.min(need, 1 << 30));
+        return n < need ? n << 1 : n;
+    }
+
+    static int maxFill(int capacity) {
+        return Math.min(capacity - 1, (int)Math.ceil(capacity * LOAD_FACTOR));
+    }
+
+    /**
+     * 线性探测删除采用向后移动：清空 last 后，依次检查后面的元素 pos，
+     * 它的理想槽位 slot 不在 (last, pos] 之间时，才能移到 last 而不破坏探测链
+     */
+    static boolean canShift(int last, int slot, int pos) {
+        return last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos);
+    }
+
+    // 收集表中所有非零 key，hasZero 时追加 0
+    static long[] keys(long[] table, int size, boolean hasZero) {
+        long[] res = new long[size + (hasZero ? 1 : 0)];
+        int j = 0;
+        for (long k : table) {
+            if(k != 0) res[j ++] = k;
+        }
+        if(hasZero) res[j] = 0;
+        return res;
+    }
+}
@@ -0,0 +1,76 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * 可变长的 long 数组，不对元素装箱
+ * 非线程安全
+ */
+public class LongList {
+
+    private long[] elements;
+    private int size;
+
+    public LongList() {
+        this(4);
+    }
+
+    public LongList(int capacity) {
+        elements = new long[Math.max(capacity, 1)];
+    }
+
+    public void add(long e) {
+        if(size == elements.length) {
+            elements = Arrays.copyOf(elements, size << 1);
+        }
+        elements[size ++] = e;
+    }
+
+    public long get(int index) {
+        if(index >= size) throw new IndexOutOfBoundsException(index);
+        return elements[index];
+    }
+
+    // 移除并返回最后一个元素
+    public long removeLast() {
+        if(size == 0) throw new IndexOutOfBoundsException(0);
+        return elements[-- size];
+    }
+
+    public boolean contains(long e) {
+        return indexOf(e) >= 0;
+    }
+
+    public int indexOf(long e) {
+        for (int i = 0; i < size; i ++) {
+            if(elements[i] == e) return i;
+        }
+        return -1;
+    }
+
+    // 移除第一个等于 e 的元素，保持其余元素的顺序
+    public boolean removeValue(long e) {
+        int i = indexOf(e);
+        if(i < 0) return false;
+        System.arraycopy(elements, i + 1, elements, i, size - i - 1);
+        size --;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elements, size));
+    }
+}
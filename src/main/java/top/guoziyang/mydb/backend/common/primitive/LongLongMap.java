@@ -0,0 +1,155 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * long 到 long 的映射，开放寻址，不对 key 和 value 装箱
+ * 非线程安全
+ */
+public class LongLongMap {
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int maxFill;
+    private int size;               // 不含 key 0
+    private boolean hasZero;
+    private long zeroValue;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expected) {
+        allocate(HashCommon.tableSize(expected));
+    }
+
+    public long getOrDefault(long key, long defaultValue) {
+        if(key == 0) return hasZero ? zeroValue : defaultValue;
+        int i = find(key);
+        return i < 0 ? defaultValue : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return key == 0 ? hasZero : find(key) >= 0;
+    }
+
+    // 放入键值对，返回旧值，不存在时返回 0，需要区分时先用 containsKey 判断
+    public long put(long key, long value) {
+        if(key == 0) {
+            long old = hasZero ? zeroValue : 0;
+            hasZero = true;
+            zeroValue = value;
+            return old;
+        }
+        int i = HashCommon.mix(key) & mask;
+        long k;
+        while((k = keys[i]) != 0) {
+            if(k == key) {
+                long old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++ size > maxFill) rehash(keys.length << 1);
+        return 0;
+    }
+
+    // 移除 key，返回旧值，不存在时返回 0，需要区分时先用 containsKey 判断
+    public long remove(long key) {
+        if(key == 0) {
+            long old = hasZero ? zeroValue : 0;
+            hasZero = false;
+            return old;
+        }
+        int i = find(key);
+        if(i < 0) return 0;
+        long old = values[i];
+        size --;
+        shiftKeys(i);
+        return old;
+    }
+
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZero = false;
+        zeroValue = 0;
+    }
+
+    // 所有 key 的快照
+    public long[] keys() {
+        return HashCommon.keys(keys, size, hasZero);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (long k : keys()) {
+            if(sb.length() > 1) sb.append(", ");
+            sb.append(k).append('=').append(getOrDefault(k, 0));
+        }
+        return sb.append('}').toString();
+    }
+
+    private int find(long key) {
+        int i = HashCommon.mix(key) & mask;
+        long k;
+        while((k = keys[i]) != 0) {
+            if(k == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 删除 pos 处的元素，把后面探测链上的元素前移
+    private void shiftKeys(int pos) {
+        int last;
+        long k;
+        while(true) {
+            pos = ((last = pos) + 1) & mask;
+            while(true) {
+                if((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                if(HashCommon.canShift(last, HashCommon.mix(k) & mask, pos)) break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        maxFill = HashCommon.maxFill(capacity);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j ++) {
+            long k = oldKeys[j];
+            if(k == 0) continue;
+            int i = HashCommon.mix(k) & mask;
+            while(keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = k;
+            values[i] = oldValues[j];
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * 按加入顺序排队的 long 集合，从队头取出，也可以按值删除，不对元素装箱
+ * 元素排在环形数组中，哈希表记录每个元素入队时的序号；删除只把元素移出哈希表，
+ * 环形数组中留下的过期项（不在哈希表中或序号不符）在出队时跳过，数组满时先清掉过期项再考虑扩容
+ * 非线程安全
+ */
+public class LongQueue {
+
+    private long[] keys;            // 环形数组
+    private long[] seqs;            // 与 keys 对应的入队序号
+    private int head;               // 队头下标
+    private int length;             // 环形数组中的项数，含过期项
+    private long nextSeq;
+    private final LongLongMap index; // 元素 -> 入队序号
+
+    public LongQueue() {
+        this(16);
+    }
+
+    public LongQueue(int capacity) {
+        capacity = Math.max(capacity, 4);
+        keys = new long[capacity];
+        seqs = new long[capacity];
+        index = new LongLongMap(capacity);
+    }
+
+    public boolean contains(long key) {
+        return index.containsKey(key);
+    }
+
+    // 加入队尾，已存在时保持原位置并返回 false
+    public boolean add(long key) {
+        if(index.containsKey(key)) return false;
+        if(length == keys.length) makeRoom();
+        int i = (head + length) % keys.length;
+        keys[i] = key;
+        seqs[i] = nextSeq;
+        index.put(key, nextSeq ++);
+        length ++;
+        return true;
+    }
+
+    // 移出队列，不存在时返回 false
+    public boolean remove(long key) {
+        if(!index.containsKey(key)) return false;
+        index.remove(key);
+        return true;
+    }
+
+    // 取出队头元素，队列为空时抛出 NoSuchElementException
+    public long poll() {
+        while(length > 0) {
+            long key = keys[head];
+            long seq = seqs[head];
+            head = (head + 1) % keys.length;
+            length --;
+            if(isLive(key, seq)) {
+                index.remove(key);
+                return key;
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    public void clear() {
+        index.clear();
+        head = 0;
+        length = 0;
+    }
+
+    // 按队列顺序的快照
+    public long[] toArray() {
+        long[] res = new long[size()];
+        int n = 0;
+        for (int r = 0; r < length; r ++) {
+            int i = (head + r) % keys.length;
+            if(isLive(keys[i], seqs[i])) res[n ++] = keys[i];
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private boolean isLive(long key, long seq) {
+        return index.getOrDefault(key, -1) == seq;     // 序号从 0 开始，-1 表示不在队列中
+    }
+
+    // 环形数组已满：过期项不少于一半时原地压缩，否则扩容，两种情况都只保留有效项
+    private void makeRoom() {
+        int n = keys.length;
+        if(index.size() <= n / 2) {
+            // 写位置不会超过读位置，原地前移不会覆盖尚未读到的项
+            int w = 0;
+            for (int r = 0; r < length; r ++) {
+                int i = (head + r) % n;
+                if(!isLive(keys[i], seqs[i])) continue;
+                int j = (head + w) % n;
+                keys[j] = keys[i];
+                seqs[j] = seqs[i];
+                w ++;
+            }
+            length = w;
+            return;
+        }
+        long[] newKeys = new long[n << 1];
+        long[] newSeqs = new long[n << 1];
+        int w = 0;
+        for (int r = 0; r < length; r ++) {
+            int i = (head + r) % n;
+            if(!isLive(keys[i], seqs[i])) continue;
+            newKeys[w] = keys[i];
+            newSeqs[w] = seqs[i];
+            w ++;
+        }
+        keys = newKeys;
+        seqs = newSeqs;
+        head = 0;
+        length = w;
+    }
+}
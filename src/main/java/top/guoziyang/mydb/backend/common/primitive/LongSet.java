@@ -0,0 +1,138 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.Arrays;
+
+/**
+ * long 集合，开放寻址，不对 key 装箱
+ * 非线程安全
+ */
+public class LongSet {
+
+    private long[] keys;
+    private int mask;
+    private int maxFill;
+    private int size;               // 不含 0
+    private boolean hasZero;
+
+    public LongSet() {
+        this(16);
+    }
+
+    public LongSet(int expected) {
+        allocate(HashCommon.tableSize(expected));
+    }
+
+    public static LongSet of(long[] elements) {
+        LongSet s = new LongSet(elements.length);
+        for (long e : elements) {
+            s.add(e);
+        }
+        return s;
+    }
+
+    public boolean contains(long key) {
+        if(key == 0) return hasZero;
+        int i = HashCommon.mix(key) & mask;
+        long k;
+        while((k = keys[i]) != 0) {
+            if(k == key) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    // 加入集合，已存在时返回 false
+    public boolean add(long key) {
+        if(key == 0) {
+            if(hasZero) return false;
+            return hasZero = true;
+        }
+        int i = HashCommon.mix(key) & mask;
+        long k;
+        while((k = keys[i]) != 0) {
+            if(k == key) return false;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        if(++ size > maxFill) rehash(keys.length << 1);
+        return true;
+    }
+
+    // 移出集合，不存在时返回 false
+    public boolean remove(long key) {
+        if(key == 0) {
+            boolean had = hasZero;
+            hasZero = false;
+            return had;
+        }
+        int i = HashCommon.mix(key) & mask;
+        long k;
+        while((k = keys[i]) != 0) {
+            if(k == key) {
+                size --;
+                shiftKeys(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+        hasZero = false;
+    }
+
+    public long[] toArray() {
+        return HashCommon.keys(keys, size, hasZero);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // 删除 pos 处的元素，把后面探测链上的元素前移
+    private void shiftKeys(int pos) {
+        int last;
+        long k;
+        while(true) {
+            pos = ((last = pos) + 1) & mask;
+            while(true) {
+                if((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                if(HashCommon.canShift(last, HashCommon.mix(k) & mask, pos)) break;
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        mask = capacity - 1;
+        maxFill = HashCommon.maxFill(capacity);
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        allocate(capacity);
+        for (long k : old) {
+            if(k == 0) continue;
+            int i = HashCommon.mix(k) & mask;
+            while(keys[i] != 0) i = (i + 1) & mask;
+            keys[i] = k;
+        }
+    }
+}
@@ -1,46 +1,70 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.concurrent.CompletableFuture;
+
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 public interface DataManager {
     DataItem read(long uid) throws Exception;
+    CompletableFuture<DataItem> readAsync(long uid);   // 异步读取，结果与 read 相同，页面未命中时不阻塞调用线程
     long insert(long xid, byte[] data) throws Exception;
+    long insert(long xid, byte[] data, long near) throws Exception;   // 尽量插入到 near 所在的页面，放不下时与普通插入相同
+    void free(long xid, long uid) throws Exception;   // 将数据项标记为无效，调用者需保证之后不再有人通过 uid 读取它
+    int compact();              // 回收所有数据项都已无效的页面、整理含有无效数据项的页面，返回回收的页数；后台也会定期执行
     void close();
+    void checkpoint();          // 写回所有脏页并回收不再需要的日志段；后台在日志每增长一段时执行
+    int getPageSize();          // 数据文件的页大小
     // 静态方法，用于从空文件创建DataManager实例
     public static DataManager create(String path, long mem, TransactionManager tm) {
+        return create(path, mem, tm, PageCacheOptions.defaults());
+    }
+    // opts 指定数据文件的访问方式、扩展区段大小和页大小
+    public static DataManager create(String path, long mem, TransactionManager tm, PageCacheOptions opts) {
         // 创建一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.create(path, mem);
+        PageCache pc = PageCache.create(path, mem, opts);
         // 创建一个Logger实例，path是文件路径
         Logger lg = Logger.create(path);
         // 创建一个DataManagerImpl实例，pc是PageCache实例，lg是Logger实例，tm是TransactionManager实例
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.fsm = FreeSpaceMap.create(path, pc.getPageSize());
         // 初始化PageOne
         dm.initPageOne();
+        // 初始化完成后再启动后台任务
+        dm.startBackground();
         // 返回创建的DataManagerImpl实例
         return dm;
     }
     // 静态方法，用于打开已存在的DataManager实例
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, tm, PageCacheOptions.defaults());
+    }
+    public static DataManager open(String path, long mem, TransactionManager tm, PageCacheOptions opts) {
         // 打开一个PageCache实例，path是文件路径，mem是内存大小
-        PageCache pc = PageCache.open(path, mem);
+        PageCache pc = PageCache.open(path, mem, opts);
         // 打开一个Logger实例，path是文件路径
         Logger lg = Logger.open(path);
         // 创建一个DataManagerImpl实例，pc是PageCache实例，lg是Logger实例，tm是TransactionManager实例
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.fsm = FreeSpaceMap.open(path, pc.getPageSize());
         // 加载并检查PageOne，如果检查失败，则进行恢复操作
-        if (!dm.loadCheckPageOne()) {
+        boolean clean = dm.loadCheckPageOne();
+        if (!clean) {
             Recover.recover(tm, lg, pc);
         }
-        // 填充PageIndex，遍历从第二页开始的每一页，将每一页的页面编号和空闲空间大小添加到 PageIndex 中
-        dm.fillPageIndex();
+        // 填充PageIndex，正常关闭时读入空闲空间表，否则逐页扫描
+        dm.fillPageIndex(clean);
         // 设置PageOne为打开状态
         PageOne.setVcOpen(dm.pageOne);
         // 将PageOne立即写入到磁盘中，确保PageOne的数据被持久化
         dm.pc.flushPage(dm.pageOne);
+        // 恢复和初始化完成后再启动后台任务
+        dm.startBackground();
         // 返回创建的DataManagerImpl实例
         return dm;
     }
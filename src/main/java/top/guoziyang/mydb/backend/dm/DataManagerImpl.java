@@ -1,6 +1,18 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.primitive.LongLongMap;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
@@ -8,34 +20,88 @@ import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheImpl;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
 
+/**
+ * 数据项的 UID 由页号、页面代数和页内槽号组成，被 B+ 树和表结构直接引用，数据项一旦写入就不能换页或换槽。
+ * 空间按两级回收，都由后台任务完成：
+ * 页面中还有有效数据项时整理页面，收回无效数据项占用的空间，槽号保留，页面以更大的空闲空间重新进入 PageIndex；
+ * 数据项全部失效后，把页面清空并增加页面的代数，槽号从头使用。代数编入 UID，回收前的 UID 读到的代数不一致，按无效数据项处理。
+ * 回收写回收日志，恢复时按日志顺序重做；整理不写日志，恢复时需要空间才重新整理。
+ *
+ * 各页面的空闲空间和回收候选同时记在 FreeSpaceMap 中，正常关闭时写入 .fsm 文件。
+ * 打开时如果上次是正常关闭，直接用它填充 PageIndex；否则和恢复一样逐页扫描重建。
+ *
+ * 日志每增长一段做一次检查点，写回所有脏页后回收不再需要的日志段，日志占用的空间和恢复的时间都有上界。
+ */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    private static final long COMPACT_INTERVAL_MS = 5000;
+    private static final long CHECKPOINT_INTERVAL_MS = 1000;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    int maxFreeSpace;   // 一个空页面能容纳的最大数据，由页大小决定
+    Set<Integer> sparsePages;                   // 含有无效数据项的页面，等待回收
+    FreeSpaceMap fsm;
+    ScheduledThreadPoolExecutor compactor;
+    ReadWriteLock checkpointLock;   // 先写日志再修改页面的操作持有读锁，检查点取 LSN 时持有写锁
+    Lock checkpointing;             // 后台和手动调用的检查点互斥
+    long lastCheckpoint;            // 上次检查点时的日志位置
+    LongLongMap firstLsn;           // 各事务写的第一条日志的 LSN，检查点时去掉已结束的事务
+    Lock lsnLock;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        this.sparsePages = ConcurrentHashMap.newKeySet();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.checkpointing = new ReentrantLock();
+        this.firstLsn = new LongLongMap();
+        this.lsnLock = new ReentrantLock();
+        this.compactor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "page-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 启动后台的页面整理和检查点任务
+     * 需在 fsm 赋值、恢复和填充 PageIndex 都完成之后调用，否则后台任务可能看到未初始化的状态，或与恢复同时修改页面
+     */
+    void startBackground() {
+        this.lastCheckpoint = logger.position();
+        compactor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        compactor.scheduleWithFixedDelay(this::checkpointIfNeeded, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     // 是根据 UID 从缓存中获取的 DataItem ，并校验有效位
     @Override
     public DataItem read(long uid) throws Exception {
-        //从缓存页面中读取到DataItemImpl
-        DataItemImpl di = (DataItemImpl) super.get(uid);
+        //从缓存页面中读取到DataItemImpl，所在页面已被回收时视为无效
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl) super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) return null;
+            throw e;
+        }
         //校验di是否有效
         if(!di.isValid()) {
             // 无效  释放缓存
@@ -45,6 +111,22 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    @Override
+    public CompletableFuture<DataItem> readAsync(long uid) {
+        return super.getAsync(uid).handle((item, err) -> {
+            if(err != null) {
+                if(err == Error.NullEntryException) return null;
+                throw err instanceof RuntimeException ? (RuntimeException)err : new CompletionException(err);
+            }
+            DataItemImpl di = (DataItemImpl) item;
+            if(!di.isValid()) {
+                di.release();
+                return null;
+            }
+            return di;
+        });
+    }
+
     /*
         在 pageIndex 中获取一个足以存储插入内容的页面的页号，获取页面后，
         首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
@@ -52,17 +134,37 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, 0);
+    }
+
+    /*
+        near 所在页面不在插入中且空间足够时直接使用它，否则与普通插入一样从 pageIndex 中选择
+     */
+    @Override
+    public long insert(long xid, byte[] data, long near) throws Exception {
         // 将输入的数据包装成DataItem的原始格式
         byte[] raw = DataItem.wrapDataItemRaw(data);
         // 如果数据项的大小超过了页面的最大空闲空间，抛出异常
-        if (raw.length > PageX.MAX_FREE_SPACE) {
+        if (raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
         // 初始化一个页面信息对象
         PageInfo pi = null;
+        if (near != 0) {
+            int pgno = (int)(near >>> 32);
+            // 空闲空间表记录的是下界，放不下时不必去索引中查找
+            int known = fsm.getFreeSpace(pgno);
+            if (known > raw.length) {
+                pi = pIndex.remove(pgno, known);
+            }
+            if (pi != null && pi.freeSpace <= raw.length) {
+                pIndex.putBack(pi.pgno, pi.freeSpace);
+                pi = null;
+            }
+        }
         // 尝试5次找到一个可以容纳新数据项的页面
-        for (int i = 0; i < 5; i++) {
+        for (int i = 0; pi == null && i < 5; i++) {
             // 从页面索引中选择一个可以容纳新数据项的页面
             pi = pIndex.select(raw.length);
             // 如果找到了合适的页面，跳出循环
@@ -70,8 +172,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 break;
             } else {
                 // 如果没有找到合适的页面，创建一个新的页面，并将其添加到页面索引中
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+                addToIndex(newPgno, maxFreeSpace);
             }
         }
 
@@ -87,39 +189,249 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         try {
             // 获取页面信息对象中的页面
             pg = pc.getPage(pi.pgno);
-            // 生成插入日志
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            // 将日志写入日志文件
-            logger.log(log);
-            // 在页面中插入新的数据项，并获取其在页面中的偏移量
-            short offset = PageX.insert(pg, raw);
-            // 释放页面
+            short slot;
+            checkpointLock.readLock().lock();
+            try {
+                // 生成插入日志
+                byte[] log = Recover.insertLog(xid, pg, raw);
+                // 将日志写入日志文件
+                writeLog(xid, log);
+                // 在页面中插入新的数据项，并获取其在页面中的槽号
+                slot = PageX.insert(pg, raw);
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            // 释放页面之前记下空闲空间和代数，页面释放后其页帧可能被其他页面复用
+            freeSpace = PageX.getFreeSpace(pg);
+            int generation = PageX.getGeneration(pg);
             pg.release();
+            pg = null;
             // 返回新插入的数据项的唯一标识符
-            return Types.addressToUid(pi.pgno, offset);
+            return Types.addressToUid(pi.pgno, generation, slot);
         } finally {
-            // 将页面重新添加到页面索引中
+            // 将页面放回页面索引，作为当前线程的插入页
             if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                putBackToIndex(pi.pgno, PageX.getFreeSpace(pg));
+            } else {
+                putBackToIndex(pi.pgno, freeSpace);
+            }
+        }
+    }
+
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl) read(uid);
+        if(di == null) return;
+        try {
+            di.before();
+            di.setInvalid();
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+        markSparse((int)(uid >>> 32), true);
+    }
+
+    // 页面放入 PageIndex，同时更新空闲空间表
+    private void addToIndex(int pgno, int freeSpace) {
+        fsm.set(pgno, freeSpace);
+        pIndex.add(pgno, freeSpace);
+    }
+
+    // 插入线程放回 select 到的页面，同时更新空闲空间表
+    private void putBackToIndex(int pgno, int freeSpace) {
+        fsm.set(pgno, freeSpace);
+        pIndex.putBack(pgno, freeSpace);
+    }
+
+    private void markSparse(int pgno, boolean sparse) {
+        fsm.setSparse(pgno, sparse);
+        if(sparse) {
+            sparsePages.add(pgno);
+        } else {
+            sparsePages.remove(pgno);
+        }
+    }
+
+    /**
+     * 逐个检查含有无效数据项的页面，数据项全部无效时回收页面，否则整理页面
+     * 页面先从 PageIndex 中取出，保证期间没有线程向其中插入；检查和回收、整理在页面的独占锁内进行，
+     * 期间不会有数据项被加载。页面中有数据项正在被使用时跳过，下一轮再检查
+     */
+    @Override
+    public int compact() {
+        int reclaimed = 0;
+        for (int pgno : sparsePages) {
+            PageInfo pi = pIndex.remove(pgno);
+            if(pi == null) continue;    // 正在被插入，下一轮再检查
+            int freeSpace = pi.freeSpace;
+            Page pg = null;
+            try {
+                pg = pc.getPage(pgno);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pg.lock();
+            try {
+                int state = checkPage(pg);
+                if(state == RECLAIMABLE) {
+                    int generation = (PageX.getGeneration(pg) + 1) & 0xFFFF;
+                    checkpointLock.readLock().lock();
+                    try {
+                        logger.log(Recover.reclaimLog(pgno, generation));
+                        PageX.reclaim(pg, generation);
+                    } finally {
+                        checkpointLock.readLock().unlock();
+                    }
+                    reclaimed ++;
+                } else if(state == COMPACTABLE) {
+                    byte[] raw = pg.getData();
+                    PageX.compact(pg, of -> DataItem.isRawValid(raw, of));
+                }
+                freeSpace = PageX.getFreeSpace(pg);
+                if(state != IN_USE) {
+                    // 回收或整理完成，之后再有数据项失效时会重新加入
+                    markSparse(pgno, false);
+                }
+            } finally {
+                pg.unlock();
+                pg.release();
+                addToIndex(pgno, freeSpace);
+            }
+        }
+        return reclaimed;
+    }
+
+    private static final int CLEAN = 0;         // 没有无效数据项占用空间
+    private static final int RECLAIMABLE = 1;   // 数据项全部无效，可以回收页面
+    private static final int COMPACTABLE = 2;   // 有效和无效数据项并存，可以整理页面
+    private static final int IN_USE = 3;        // 有数据项正在被使用或加载，暂不处理
+
+    private int checkPage(Page pg) {
+        int count = PageX.getSlotCount(pg);
+        if(count == 0) return CLEAN;      // 空页面不需要回收
+        byte[] raw = pg.getData();
+        int generation = PageX.getGeneration(pg);
+        boolean valid = false, dead = false, cached = false;
+        for (int slot = 0; slot < count; slot ++) {
+            int of = PageX.getOffset(pg, slot);
+            if(of == 0) continue;       // 已被整理掉
+            if(DataItem.isRawValid(raw, of)) {
+                valid = true;
             } else {
-                pIndex.add(pi.pgno, freeSpace);
+                dead = true;
             }
+            if(!cached && isCached(Types.addressToUid(pg.getPageNumber(), generation, (short)slot))) {
+                cached = true;
+            }
+        }
+        if(!valid) return cached ? IN_USE : RECLAIMABLE;
+        if(!dead) return CLEAN;
+        return cached ? IN_USE : COMPACTABLE;
+    }
+
+    /**
+     * 检查点：写回所有脏页，之后恢复不再需要检查点之前的日志，尚未结束的事务回滚要用的日志除外
+     * 取 LSN 时持有写锁，此前写了日志的插入和回收都已修改了页面；更新先修改页面再写日志，同样已在页面中。
+     * 页面落盘后写检查点日志记下页数，恢复时不会截掉没有日志的页面，最后回收不再需要的日志段
+     */
+    @Override
+    public void checkpoint() {
+        checkpointing.lock();
+        try {
+            long lsn;
+            int pageNumber;
+            checkpointLock.writeLock().lock();
+            try {
+                lsn = logger.position();
+                pageNumber = pc.getPageNumber();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            lastCheckpoint = lsn;
+            pc.checkpoint();
+            logger.log(Recover.checkpointLog(pageNumber));
+
+            lsnLock.lock();
+            try {
+                for (long xid : firstLsn.keys()) {
+                    if(tm.isActive(xid)) {
+                        lsn = Math.min(lsn, firstLsn.getOrDefault(xid, lsn));
+                    } else {
+                        firstLsn.remove(xid);
+                    }
+                }
+            } finally {
+                lsnLock.unlock();
+            }
+            logger.recycle(lsn);
+        } finally {
+            checkpointing.unlock();
         }
     }
 
+    // 上次检查点之后日志增长了一段时做检查点
+    private void checkpointIfNeeded() {
+        if(logger.position() - lastCheckpoint >= logger.getSegmentSize()) {
+            checkpoint();
+        }
+    }
+
+    // 写日志之前记下事务的第一条日志的位置，检查点不会回收它回滚要用的日志
+    private void writeLog(long xid, byte[] log) {
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            lsnLock.lock();
+            try {
+                if(!firstLsn.containsKey(xid)) {
+                    firstLsn.put(xid, logger.position());
+                }
+            } finally {
+                lsnLock.unlock();
+            }
+        }
+        logger.log(log);
+    }
+
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
     @Override
     public void close() {
+        stopCompactor();
         super.close();
         logger.close();
+        // 先写空闲空间表，再标记正常关闭，下次打开看到正常关闭时空闲空间表一定是完整的
+        fsm.save();
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
     }
 
+    /**
+     * 模拟进程崩溃，仅供测试：停止后台任务后直接关闭日志和数据文件，
+     * 缓存中的页面、空闲空间表和正常关闭标记都不写回，之后用 DataManager.open 重新打开时执行恢复
+     */
+    void crash() {
+        stopCompactor();
+        logger.close();
+        ((PageCacheImpl) pc).crash();
+    }
+
+    private void stopCompactor() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        writeLog(xid, log);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -130,17 +442,44 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        // 从 uid 中提取出偏移量（offset），这是通过位操作实现的，偏移量是 uid 的低16位
-        short offset = (short) (uid & ((1L << 16) - 1));
+        // 从 uid 中提取出槽号（slot），槽号是 uid 的低16位
+        short slot = Types.uidToSlot(uid);
+        int generation = Types.uidToGeneration(uid);
         // 将 uid 右移32位，以便接下来提取出页面编号（pgno）
         uid >>>= 32;
         // 从 uid 中提取出页面编号（pgno），页面编号是 uid 的高32位
         int pgno = (int) (uid & ((1L << 32) - 1));
         // 使用页面缓存（pc）的 getPage(int pgno) 方法根据页面编号获取一个 Page 对象
         Page pg = pc.getPage(pgno);
-        // 使用 DataItem 接口的静态方法 parseDataItem(Page pg, short offset, DataManagerImpl dm)
-        // 根据获取到的 Page 对象、偏移量和当前的 DataManagerImpl 对象（this）解析出一个 DataItem 对象，并返回这个对象
-        return DataItem.parseDataItem(pg, offset, this);
+        // 根据获取到的 Page 对象、槽号和当前的 DataManagerImpl 对象（this）解析出一个 DataItem 对象，并返回这个对象
+        return parseDataItem(pg, generation, slot);
+    }
+
+    // 与 getForCache 相同，页面通过 getPageAsync 异步读取
+    @Override
+    protected CompletableFuture<DataItem> getForCacheAsync(long uid) {
+        short slot = Types.uidToSlot(uid);
+        int pgno = (int) (uid >>> 32);
+        int generation = Types.uidToGeneration(uid);
+        return pc.getPageAsync(pgno).thenApply(pg -> parseDataItem(pg, generation, slot));
+    }
+
+    /**
+     * 按槽号找到数据项的偏移并解析，持有页面的修改锁，不会与页面整理交错
+     * 页面在 uid 生成之后被回收过，或者槽中的数据已被整理掉时，uid 指向的数据项已不存在
+     */
+    private DataItem parseDataItem(Page pg, int generation, short slot) {
+        pg.beginWrite();
+        try {
+            int offset = PageX.getGeneration(pg) == generation ? PageX.getOffset(pg, slot & 0xFFFF) : 0;
+            if(offset != 0) {
+                return DataItem.parseDataItem(pg, slot, offset, this);
+            }
+        } finally {
+            pg.endWrite();
+        }
+        pg.release();
+        throw (RuntimeException) Error.NullEntryException;
     }
 
     // DataItem 缓存释放，需要将 DataItem 写回数据源；
@@ -152,7 +491,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     // 在创建文件时初始化PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -174,18 +513,38 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 填充 PageIndex。
-     * 遍历从第二页开始的每一页，将每一页的页面编号和空闲空间大小添加到 PageIndex 中。
+     * 上次正常关闭时从空闲空间表读入，不读取页面；表中没有的页面以及崩溃后的所有页面，逐页扫描。
      */
-    void fillPageIndex() {
+    void fillPageIndex(boolean cleanShutdown) {
         int pageNumber = pc.getPageNumber(); // 获取当前的页面数量
-        for (int i = 2; i <= pageNumber; i++) { // 从第二页开始，对每一页进行处理
+        int from = 2;
+        if(cleanShutdown && fsm.load(pageNumber)) {
+            for (int i = 2; i <= fsm.getPageCount(); i ++) {
+                pIndex.add(i, fsm.getFreeSpace(i));
+                if(fsm.isSparse(i)) {
+                    sparsePages.add(i);
+                }
+            }
+            from = Math.max(from, fsm.getPageCount() + 1);
+        }
+        scanPages(from, pageNumber);
+    }
+
+    /**
+     * 逐页读取 [from, to] 的页面，将页面编号和空闲空间大小添加到 PageIndex 中
+     */
+    void scanPages(int from, int to) {
+        for (int i = from; i <= to; i++) {
             Page pg = null;
             try {
                 pg = pc.getPage(i); // 尝试获取页面
             } catch (Exception e) {
                 Panic.panic(e); // 如果出现异常，处理异常
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg)); // 将页面编号和页面的空闲空间大小添加到 PageIndex 中
+            addToIndex(i, PageX.getFreeSpace(pg)); // 将页面编号和页面的空闲空间大小添加到 PageIndex 中
+            if(checkPage(pg) != CLEAN) {
+                markSparse(i, true);    // 例如恢复时被撤销的插入，交给后台回收或整理
+            }
             pg.release(); // 释放页面
         }
     }
@@ -16,20 +16,32 @@ import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Types;
 
 // 日志恢复策略
 public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_RECLAIM = 2;
+    private static final byte LOG_TYPE_CHECKPOINT = 3;
 
     // updateLog:
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
 
     // insertLog:
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Raw]
+
+    // reclaimLog:
+    // [LogType] [XID] [Pgno] [Generation]
+    // 页面回收不属于任何事务，XID 总是超级事务，只需重做
+
+    // checkpointLog:
+    // [LogType] [XID] [PageNumber]
+    // 检查点完成时写入，此前的页面都已落盘，之前的日志可能已被回收，恢复时页数至少为 PageNumber
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -37,14 +49,14 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
@@ -58,7 +70,11 @@ public class Recover {
             byte[] log = lg.next();
             if(log == null) break;
             int pgno;
-            if(isInsertLog(log)) {
+            if(isCheckpointLog(log)) {
+                pgno = parseCheckpointLog(log);
+            } else if(isReclaimLog(log)) {
+                pgno = parseReclaimLog(log).pgno;
+            } else if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
             } else {
@@ -95,13 +111,20 @@ public class Recover {
             // 如果读取到的日志记录为空，表示已经读取到日志文件的末尾，跳出循环
             if (log == null) break;
             // 判断日志记录的类型
-            if (isInsertLog(log)) {
+            if (isCheckpointLog(log)) {
+                continue;
+            } else if (isReclaimLog(log)) {
+                doReclaimLog(pc, log);
+            } else if (isInsertLog(log)) {
                 // 如果是插入日志，解析日志记录，获取插入日志信息
                 InsertLogInfo li = parseInsertLog(log);
                 // 获取事务ID
                 long xid = li.xid;
-                // 如果当前事务已经提交，进行重做操作
-                if (!tm.isActive(xid)) {
+                // 如果当前事务已经提交，进行重做操作；已回滚事务的插入以无效数据项重做，
+                // 页面整理不写日志，整理时已丢弃的这类数据项不能在重做后重新占住空间
+                if (tm.isAborted(xid)) {
+                    doInsertLog(pc, log, UNDO);
+                } else if (!tm.isActive(xid)) {
                     doInsertLog(pc, log, REDO);
                 }
             } else {
@@ -130,7 +153,9 @@ public class Recover {
             // 如果读取到的日志记录为空，表示已经读取到日志文件的末尾，跳出循环
             if (log == null) break;
             // 判断日志记录的类型
-            if (isInsertLog(log)) {
+            if (isReclaimLog(log) || isCheckpointLog(log)) {
+                continue;
+            } else if (isInsertLog(log)) {
                 // 如果是插入日志，解析日志记录，获取插入日志信息
                 InsertLogInfo li = parseInsertLog(log);
                 // 获取事务ID
@@ -182,6 +207,14 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isReclaimLog(byte[] log) {
+        return log[0] == LOG_TYPE_RECLAIM;
+    }
+
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
     // 日志数据 [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
@@ -210,7 +243,7 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.slot = Types.uidToSlot(uid);
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -221,7 +254,7 @@ public class Recover {
 
     private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno; // 用于存储页面编号
-        short offset; // 用于存储偏移量
+        short slot; // 用于存储页内槽号
         byte[] raw; // 用于存储原始数据
 
         // 根据标志位判断是进行重做操作还是撤销操作
@@ -229,13 +262,13 @@ public class Recover {
             // 如果是重做操作，解析日志记录，获取更新日志信息，主要获取新数据
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.newRaw;
         } else {
             // 如果是撤销操作，解析日志记录，获取更新日志信息，主要获取旧数据
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
 
@@ -249,32 +282,32 @@ public class Recover {
         }
 
         try {
-            // 在指定的页面和偏移量处插入解析出的数据, 数据页缓存讲解了该方法
-            PageX.recoverUpdate(pg, raw, offset);
+            // 在指定的页面和槽处写入解析出的数据, 数据页缓存讲解了该方法
+            PageX.recoverUpdate(pg, raw, slot);
         } finally {
             // 无论是否发生异常，都要释放页面
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT+2;
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte((short)PageX.getSlotCount(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
@@ -295,11 +328,66 @@ public class Recover {
             if (flag == UNDO) {
                 DataItem.setDataItemRawInvalid(li.raw);
             }
-            // 在指定的页面和偏移量处插入数据
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            // 在指定的页面和槽处插入数据，页面需要整理时丢弃无效的数据项
+            final Page page = pg;
+            PageX.recoverInsert(pg, li.raw, li.slot, of -> DataItem.isRawValid(page.getData(), of));
         } finally {
             // 无论是否发生异常，都要释放页面,即AbstractCache.release() 方法
             pg.release();
         }
     }
+
+    static class ReclaimLogInfo {
+        int pgno;
+        int generation;
+    }
+
+    // [LogType] [XID] [Pgno] [Generation]
+    private static final int OF_RECLAIM_PGNO = OF_XID+8;
+    private static final int OF_RECLAIM_GEN = OF_RECLAIM_PGNO+4;
+
+    public static byte[] reclaimLog(int pgno, int generation) {
+        byte[] logTypeRaw = {LOG_TYPE_RECLAIM};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] genRaw = Parser.short2Byte((short)generation);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, genRaw);
+    }
+
+    private static ReclaimLogInfo parseReclaimLog(byte[] log) {
+        ReclaimLogInfo li = new ReclaimLogInfo();
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_RECLAIM_PGNO, OF_RECLAIM_GEN));
+        li.generation = Parser.parseShort(Arrays.copyOfRange(log, OF_RECLAIM_GEN, OF_RECLAIM_GEN+2)) & 0xFFFF;
+        return li;
+    }
+
+    // 重做页面回收，之后的插入日志会按顺序重新写入数据
+    private static void doReclaimLog(PageCache pc, byte[] log) {
+        ReclaimLogInfo li = parseReclaimLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.reclaim(pg, li.generation);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // [LogType] [XID] [PageNumber]
+    private static final int OF_CHECKPOINT_PAGES = OF_XID+8;
+
+    public static byte[] checkpointLog(int pageNumber) {
+        byte[] logTypeRaw = {LOG_TYPE_CHECKPOINT};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pagesRaw = Parser.int2Byte(pageNumber);
+        return Bytes.concat(logTypeRaw, xidRaw, pagesRaw);
+    }
+
+    private static int parseCheckpointLog(byte[] log) {
+        return Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKPOINT_PAGES, OF_CHECKPOINT_PAGES+4));
+    }
 }
@@ -7,6 +7,7 @@ import com.google.common.primitives.Bytes;
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 
@@ -22,6 +23,9 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnLock();
+    // 乐观读：读之前取得版本戳，读完后校验，期间有修改（或读时已被锁定）时校验失败，需加读锁重读
+    long tryOptimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -34,16 +38,21 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的偏移 of 处解析出 slot 槽中的dataitem，size 按无符号数解释，以支持大于 32KB 的页面
+    public static DataItem parseDataItem(Page pg, short slot, int of, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+        int size = Parser.parseShort(Arrays.copyOfRange(raw, of+DataItemImpl.OF_SIZE, of+DataItemImpl.OF_DATA)) & 0xFFFF;
+        int length = size + DataItemImpl.OF_DATA;
+        long uid = Types.addressToUid(pg.getPageNumber(), PageX.getGeneration(pg), slot);
+        return new DataItemImpl(new SubArray(raw, of, of + length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // 页面 raw 中 offset 处的数据项是否有效
+    public static boolean isRawValid(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == (byte)0;
+    }
 }
@@ -1,8 +1,6 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
@@ -22,8 +20,10 @@ public class DataItemImpl implements DataItem {
 
     private SubArray raw;          //原始数据
     private byte[] oldRaw;         //旧的原始数据
-    private Lock rLock;
-    private Lock wLock;
+    // 读写锁不可重入，持有写锁（before 到 after 之间）时不能再加读锁
+    // 读者可以不加锁乐观地读，修改会让读之前取得的版本戳失效
+    private StampedLock lock;
+    private long writeStamp;        // 写锁的版本戳，只由持有写锁的线程读写
     private DataManagerImpl dm;     //数据管理器
     private long uid;
     private Page pg;
@@ -31,9 +31,7 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        this.lock = new StampedLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -43,15 +41,22 @@ public class DataItemImpl implements DataItem {
         return raw.raw[raw.start+OF_VALID] == (byte)0;
     }
 
+    // 将数据项标记为无效，需在 before 和 after 之间调用
+    public void setInvalid() {
+        raw.raw[raw.start+OF_VALID] = (byte)1;
+    }
+
     @Override
     public SubArray data() {
         return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
     }
 
     // 在修改数据项之前调用，用于锁定数据项并保存原始数据到oldRaw
+    // 修改期间持有页面的修改锁，保证日志写入前的中间状态不会被后台写线程刷到磁盘
     @Override
     public void before() {
-        wLock.lock();
+        writeStamp = lock.writeLock();
+        pg.beginWrite();
         pg.setDirty(true);
         //保存原始数据的副本，以便在需要时进行回滚
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -61,14 +66,16 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wLock.unlock();
+        pg.endWrite();
+        lock.unlockWrite(writeStamp);
     }
 
     // 在修改完成之后调用，用于记录日志并解锁数据项
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this); // 记录日志
-        wLock.unlock();               // 释放锁
+        pg.endWrite();                // 日志已落盘，页面可以被写回
+        lock.unlockWrite(writeStamp); // 释放锁
     }
 
     @Override
@@ -78,22 +85,35 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void lock() {
-        wLock.lock();
+        writeStamp = lock.writeLock();
     }
 
     @Override
     public void unlock() {
-        wLock.unlock();
+        lock.unlockWrite(writeStamp);
     }
 
     @Override
     public void rLock() {
-        rLock.lock();
+        lock.readLock();
     }
 
     @Override
     public void rUnLock() {
-        rLock.unlock();
+        // 读锁的版本戳不随接口传递，解锁失败说明加解锁不配对
+        if(!lock.tryUnlockRead()) {
+            throw new IllegalMonitorStateException();
+        }
+    }
+
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
     }
 
     @Override
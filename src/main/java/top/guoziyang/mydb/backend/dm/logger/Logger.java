@@ -2,23 +2,27 @@ package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data);              // 写入日志，返回时日志已落盘，返回日志的 LSN
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
     void close();
+    long position();                    // 下一条日志的 LSN
+    void recycle(long lsn);             // lsn 之前的日志不再需要，回收它们所在的段
+    int getSegmentSize();               // 日志段的大小
 
     public static Logger create(String path) {
+        return create(path, LoggerImpl.SEGMENT_SIZE);
+    }
+
+    public static Logger create(String path, int segmentSize) {
         File f = new File(path + LoggerImpl.LOG_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -40,16 +44,11 @@ public interface Logger {
            Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        LoggerImpl.initHeader(path, fc, segmentSize);
+        LoggerImpl lg = new LoggerImpl(path, raf, fc);
+        lg.init();
 
-        return new LoggerImpl(raf, fc, 0);
+        return lg;
     }
 
     public static Logger open(String path) {
@@ -70,7 +69,7 @@ public interface Logger {
            Panic.panic(e);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(path, raf, fc);
         lg.init();
 
         return lg;
@@ -1,14 +1,16 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-
-import com.google.common.primitives.Bytes;
+import java.util.zip.CRC32C;
 
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
@@ -16,199 +18,400 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * 
+ *
+ * 日志分成固定大小的段，每段一个文件 path.log.N，N 为段号。path.log 是日志头：
+ * [Magic] [Version] [SegmentSize] [FirstSegment]
+ * Magic 4字节，标识分段的日志；Version 4字节，日志格式版本，两者不符的日志不能打开
+ * SegmentSize 4字节int 每段的大小，创建后不变
+ * FirstSegment 8字节long 最早的仍然需要的段，之前的段已被回收
+ *
+ * 日志的 LSN 是它在整个日志中的偏移，第 N 段存放 [N*SegmentSize, (N+1)*SegmentSize) 的日志，日志不跨段，
+ * 段尾放不下的日志从下一段开头写起，段尾的剩余空间不使用。
+ *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int 对 LSN、Size 和 Data 计算的 CRC32C
+ * 校验和包含 LSN，回收重用的段中残留的旧日志不会被当作新日志读出。
+ * 读取时遇到校验失败的日志，若下一段开头是正确的日志则跳到下一段继续，否则日志到此结束。
+ * 写入下一段之前先 force 当前段，下一段开头正确时之前的段一定是完整的。
+ *
+ * 组提交：log 把日志追加到内存缓冲区后等待落盘，由刷盘线程把积攒的一批日志一次写入并 force，
+ * 再唤醒这一批的所有等待者。并发写日志的线程共用一次 fsync，
+ * log 返回时日志一定已经落盘，调用者仍可以据此写回页面。
+ *
+ * 检查点之前的日志不再需要时调用 recycle，它之前的段改名为之后的段号留作备用，写满当前段时直接使用，
+ * 备用段超过 MAX_SPARE 个时删除。打开时只需从最后一个开头正确的段扫描到日志末尾，
+ * 打开的时间和日志占用的空间都不随数据库的历史增长。
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
+    public static final int SEGMENT_SIZE = 16 << 20;   // 默认段大小
+    static final int MIN_SEGMENT_SIZE = 1 << 18;        // 需放得下最大的数据项的更新日志
+    private static final int MAX_SPARE = 2;
 
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
-    
+
+    // 日志头
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_SEGMENT_SIZE = OF_VERSION + 4;
+    private static final int OF_FIRST_SEGMENT = OF_SEGMENT_SIZE + 4;
+    static final int HEADER_LENGTH = OF_FIRST_SEGMENT + 8;
+    private static final int MAGIC = 0x4D594C47;   // "MYLG"
+    private static final int VERSION = 1;
+
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file;
+    private String path;
+    private RandomAccessFile file;  // 日志头
     private FileChannel fc;
-    private Lock lock;
+    private Lock lock;              // 保护段文件和读取位置
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private int segmentSize;
+    private long firstSegment;
+    private long lastFile;          // 已存在的最大段号，其后的段号都没有文件
+    private long tailSegment = -1;  // 正在写入的段
+    private FileChannel tail;
+    private long readSegment = -1;  // 正在读取的段
+    private FileChannel reader;
+    private long position;          // 下一条要读取的日志的 LSN
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    private Lock bufLock;           // 保护以下缓冲区和组提交状态
+    private Condition needFlush;    // 有日志等待写入，或者正在关闭
+    private Condition flushed;      // 一批日志已落盘
+    private byte[] buf;             // 等待写入的日志，从 bufStart 开始连续存放
+    private int bufSize;
+    private long bufStart;
+    private long next;              // 下一条日志的 LSN
+    private long durable;           // 此前的日志都已落盘
+    private boolean closed;
+    private Thread flusher;
+    long flushes;                   // 落盘的次数，测试用
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
+    LoggerImpl(String path, RandomAccessFile raf, FileChannel fc) {
+        this.path = path;
         this.file = raf;
         this.fc = fc;
-        this.xChecksum = xChecksum;
         lock = new ReentrantLock();
+        bufLock = new ReentrantLock();
+        needFlush = bufLock.newCondition();
+        flushed = bufLock.newCondition();
+        buf = new byte[4096];
     }
 
-    public void init() {
-        long size = 0;
+    // 写入新日志的日志头，删除同名的残留段文件
+    static void initHeader(String path, FileChannel fc, int segmentSize) {
+        if(segmentSize < MIN_SEGMENT_SIZE) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        for (long seg : listSegments(path)) {
+            new File(segmentPath(path, seg)).delete();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putInt(segmentSize).putLong(0);
+        header.flip();
         try {
-            size = file.length();
+            fc.position(0);
+            fc.write(header);
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if(size < 4) {                                   // 若文件大小小于4，证明日志文件创建出现问题
-            Panic.panic(Error.BadLogFileException);
-        }
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4); // 创建一个容量为4的ByteBuffer
+    /**
+     * 读入日志头，找到日志末尾，去掉末尾不完整的日志，之后启动刷盘线程
+     */
+    public void init() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
         try {
+            if(file.length() < HEADER_LENGTH) {
+                Panic.panic(Error.BadLogFileException);
+            }
             fc.position(0);
-            fc.read(raw);                                 // 读取四字节大小的内容
+            fc.read(header);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());     // 将其转换成int整数
-        this.fileSize = size;
-        this.xChecksum = xChecksum;                       // 赋值给当前对象
-
-        checkAndRemoveTail();                             //检查是否需要去除BadTail
-    }
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        segmentSize = header.getInt();
+        firstSegment = header.getLong();
+        if(magic != MAGIC || version != VERSION || segmentSize < MIN_SEGMENT_SIZE || firstSegment < 0) {
+            Panic.panic(Error.BadLogFileException);
+        }
 
-    // 检查并移除bad tail
-    private void checkAndRemoveTail() {
-        // 将当前位置重置为文件的开始位置
-        // [XChecksum][Log1][Log2]...[LogN][BadTail] --> [Log1][Log2]...[LogN][BadTail]
-        rewind();  // 向后移动四个字节
-        // 初始化校验和为 0
-        int xCheck = 0;
-        while(true) {
-            // 读取下一条日志
-            byte[] log = internNext();
-            // 如果读取到的日志为 null，说明没有更多的日志可以读取，跳出循环
-            if (log == null) break;
-            // 计算校验和
-            xCheck = calChecksum(xCheck, log);
+        TreeSet<Long> segments = listSegments(path);
+        // 回收时先更新日志头再处理旧段，崩溃后可能残留
+        for (long seg : segments.headSet(firstSegment)) {
+            new File(segmentPath(path, seg)).delete();
         }
-        // 比较计算得到的校验和和文件中的校验和，如果不相等，说明日志已经被破坏，抛出异常
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        lastFile = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.last());
+
+        // 日志末尾在最后一个开头正确的段中
+        long start = firstSegment;
+        for (long seg : segments.descendingSet().headSet(firstSegment, true)) {
+            if(readAt(seg * segmentSize) != null) {
+                start = seg;
+                break;
+            }
         }
-        // 尝试将文件截断到当前位置，移除 "bad tail"
+        position = start * segmentSize;
+        while(internNext() != null);
         try {
             truncate(position);
         } catch (Exception e) {
             Panic.panic(e);
         }
-        // 尝试将文件的读取位置设置为当前位置
+        next = durable = bufStart = position;
+        rewind();
+
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 关闭之后调用时抛出 IllegalStateException，刷盘线程已经退出，日志不会再落盘
+     */
+    @Override
+    public long log(byte[] data) {
+        int length = OF_DATA + data.length;
+        if(length > segmentSize) {
+            Panic.panic(Error.DataTooLargeException);
+        }
+        bufLock.lock();
         try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
+            if(closed) {
+                throw new IllegalStateException("Log is closed!");
+            }
+            long lsn = next;
+            if(lsn % segmentSize + length > segmentSize) {
+                // 段尾放不下，从下一段开头写起，缓冲区中的段尾空间填 0
+                lsn = (lsn / segmentSize + 1) * segmentSize;
+            }
+            int end = (int)(lsn - bufStart) + length;
+            if(end > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, end));
+            }
+            Arrays.fill(buf, bufSize, end - length, (byte)0);
+            wrapLog(lsn, data, buf, end - length);
+            bufSize = end;
+            next = lsn + length;
+            needFlush.signal();
+            // 等待包含这条日志的一批落盘
+            while(durable < lsn + length) {
+                flushed.awaitUninterruptibly();
+            }
+            return lsn;
+        } finally {
+            bufLock.unlock();
         }
-        // 将当前位置重置为文件的开始位置  4字节处
-        rewind();
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    @Override
+    public long position() {
+        bufLock.lock();
+        try {
+            return next;
+        } finally {
+            bufLock.unlock();
         }
-        return xCheck;
     }
 
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // 刷盘线程：取走缓冲区中积攒的全部日志，写入并落盘后唤醒等待者，写盘期间新的日志继续进入缓冲区
+    private void flushLoop() {
+        while(true) {
+            byte[] batch;
+            long start;
+            bufLock.lock();
+            try {
+                while(bufSize == 0 && !closed) {
+                    needFlush.awaitUninterruptibly();
+                }
+                if(bufSize == 0) {
+                    return;     // 已关闭且没有剩余的日志
+                }
+                batch = Arrays.copyOf(buf, bufSize);
+                start = bufStart;
+                bufStart += bufSize;
+                bufSize = 0;
+            } finally {
+                bufLock.unlock();
+            }
+
+            write(start, batch);
+
+            bufLock.lock();
+            try {
+                durable = start + batch.length;
+                flushes ++;
+                flushed.signalAll();
+            } finally {
+                bufLock.unlock();
+            }
+        }
+    }
+
+    // 把从 start 开始的一批日志按段写入，写入下一段之前 force 当前段，最后 force 一次
+    private void write(long start, byte[] batch) {
         lock.lock();
         try {
-            fc.position(fc.size()); // 这里就是移动到文件末尾
-            fc.write(buf);
+            int off = 0;
+            while(off < batch.length) {
+                long lsn = start + off;
+                FileChannel ch = tailChannel(lsn / segmentSize);
+                int n = (int)Math.min(batch.length - off, segmentSize - lsn % segmentSize);
+                ByteBuffer buf = ByteBuffer.wrap(batch, off, n);
+                long pos = lsn % segmentSize;
+                while(buf.hasRemaining()) {
+                    pos += ch.write(buf, pos);
+                }
+                off += n;
+            }
+            tail.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        // 更新总校验值
-        updateXChecksum(log);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    // 切换到第 seg 段写入，有备用段时直接使用，调用者需持有 lock
+    private FileChannel tailChannel(long seg) throws IOException {
+        if(seg == tailSegment) return tail;
+        if(tail != null) {
+            tail.force(false);
+            tail.close();
+        }
+        tail = openSegment(seg, "rw");
+        tailSegment = seg;
+        lastFile = Math.max(lastFile, seg);
+        return tail;
+    }
+
+    /**
+     * 回收 lsn 所在段之前的段，调用者需保证 lsn 之前的日志都不再需要
+     * 先持久化新的起始段，再把旧段改名为之后的段号留作备用，备用段已够时删除
+     */
+    @Override
+    public void recycle(long lsn) {
+        lock.lock();
         try {
-            fc.position(0); // 切换到文件开头位置
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            long seg = lsn / segmentSize;
+            if(tailSegment >= 0) {
+                seg = Math.min(seg, tailSegment);   // 不回收正在写入的段
+            }
+            if(seg <= firstSegment) return;
+            closeReader();
+            ByteBuffer first = ByteBuffer.wrap(Parser.long2Byte(seg));
+            fc.write(first, OF_FIRST_SEGMENT);
             fc.force(false);
-        } catch(IOException e) {
+            for (long old = firstSegment; old < seg; old ++) {
+                File f = new File(segmentPath(path, old));
+                if(lastFile - Math.max(tailSegment, seg) < MAX_SPARE
+                    && f.renameTo(new File(segmentPath(path, lastFile + 1)))) {
+                    lastFile ++;
+                } else {
+                    f.delete();
+                }
+            }
+            firstSegment = seg;
+        } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        // 使用 calChecksum 方法计算数据的校验和，然后将校验和转换为字节数组
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        // 将数据的长度转换为字节数组
-        byte[] size = Parser.int2Byte(data.length);
-        // 使用 Bytes.concat 方法将 size、checksum 和 data 连接成一个新的字节数组，然后返回这个字节数组
-        return Bytes.concat(size, checksum, data);  // 大小 + 校验和 + 数据
+    // [Size][Checksum][Data] 写入 dst 的 pos 处
+    private static void wrapLog(long lsn, byte[] data, byte[] dst, int pos) {
+        System.arraycopy(Parser.int2Byte(data.length), 0, dst, pos + OF_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(checksum(lsn, data, 0, data.length)), 0, dst, pos + OF_CHECKSUM, 4);
+        System.arraycopy(data, 0, dst, pos + OF_DATA, data.length);
     }
 
+    private static int checksum(long lsn, byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(Parser.long2Byte(lsn));
+        crc.update(Parser.int2Byte(len));
+        crc.update(data, off, len);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 截断日志，丢弃 x 及之后的日志
+     * 重写之前的段尾残留的日志可能恰好接在新日志之后，之后的段同样清空
+     */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            long seg = x / segmentSize;
+            for (long s : listSegments(path).tailSet(seg)) {
+                try (RandomAccessFile raf = new RandomAccessFile(segmentPath(path, s), "rw")) {
+                    raf.getChannel().truncate(s == seg ? x % segmentSize : 0);
+                }
+            }
+            closeReader();
         } finally {
             lock.unlock();
         }
     }
 
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) { // 越界，数据错误
-            return null;
-        }
-        // 用于读取[size]
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    // 读取 LSN 为 lsn 的日志 [Size][Checksum][Data]，不存在或校验失败时返回 null
+    private byte[] readAt(long lsn) {
+        long seg = lsn / segmentSize;
+        long off = lsn % segmentSize;
         try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch(IOException e) {
+            if(seg != readSegment) {
+                closeReader();
+                if(!new File(segmentPath(path, seg)).exists()) return null;
+                reader = openSegment(seg, "r");
+                readSegment = seg;
+            }
+            long size = Math.min(reader.size(), segmentSize);
+            if(off + OF_DATA > size) return null;
+            ByteBuffer tmp = ByteBuffer.allocate(4);
+            reader.read(tmp, off);
+            int length = Parser.parseInt(tmp.array());
+            // 日志数据不会为空，段尾填充的 0 也在这里被排除
+            if(length <= 0 || off + OF_DATA + length > size) return null;
+            ByteBuffer buf = ByteBuffer.allocate(OF_DATA + length);
+            while(buf.hasRemaining()) {
+                if(reader.read(buf, off + buf.position()) < 0) return null;
+            }
+            byte[] log = buf.array();
+            int checksum = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+            if(checksum != checksum(lsn, log, OF_DATA, length)) {
+                return null;
+            }
+            return log;
+        } catch (IOException e) {
             Panic.panic(e);
-        }
-        // 判断是否越界
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) { // 越界，数据错误
             return null;
         }
+    }
 
-        // 读取整条日志数据 [Size][Checksum][Data]
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
-        try {
-            fc.position(position);
-            // 读取整条日志 [Size][Checksum][Data]
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
-        }
-
-        byte[] log = buf.array();  // 该条日志大小（） + 数据
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length)); // 计算该条数据校验和
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));    // 该条数据的校验和
-        // 比较计算得到的校验和和日志中的校验和，如果不相等，说明日志已经被破坏，返回 null
-        if(checkSum1 != checkSum2) {
-            return null;
+    private byte[] internNext() {
+        byte[] log = readAt(position);
+        if(log == null && position % segmentSize != 0) {
+            // 可能是段尾放不下，日志从下一段开头继续
+            long start = (position / segmentSize + 1) * segmentSize;
+            log = readAt(start);
+            if(log != null) position = start;
         }
-        // 更新当前位置
+        if(log == null) return null;
         position += log.length;
-        // 返回读取到的日志
         return log;
     }
 
@@ -226,17 +429,70 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try {
+            position = firstSegment * segmentSize;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        // 等刷盘线程写完剩余的日志后退出
+        bufLock.lock();
+        try {
+            closed = true;
+            needFlush.signal();
+        } finally {
+            bufLock.unlock();
+        }
         try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        try {
+            closeReader();
+            if(tail != null) tail.close();
             fc.close();
             file.close();
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
-    
+
+    private void closeReader() throws IOException {
+        if(reader != null) {
+            reader.close();
+            reader = null;
+            readSegment = -1;
+        }
+    }
+
+    private FileChannel openSegment(long seg, String mode) throws IOException {
+        return new RandomAccessFile(segmentPath(path, seg), mode).getChannel();
+    }
+
+    static String segmentPath(String path, long seg) {
+        return path + LOG_SUFFIX + "." + seg;
+    }
+
+    // 磁盘上已有的段号
+    static TreeSet<Long> listSegments(String path) {
+        File log = new File(path + LOG_SUFFIX).getAbsoluteFile();
+        String prefix = log.getName() + ".";
+        TreeSet<Long> segments = new TreeSet<>();
+        String[] names = log.getParentFile().list();
+        if(names == null) return segments;
+        for (String name : names) {
+            if(!name.startsWith(prefix)) continue;
+            try {
+                segments.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // 不是段文件
+            }
+        }
+        return segments;
+    }
 }
@@ -1,8 +1,11 @@
 package top.guoziyang.mydb.backend.dm.page;
 
 public interface Page {
-    void lock();
+    void lock();            // 独占页面内容，刷盘取快照时使用
     void unlock();
+    boolean tryLock();
+    void beginWrite();      // 修改页面内容前调用，修改者之间不互斥，只与 lock 互斥
+    void endWrite();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
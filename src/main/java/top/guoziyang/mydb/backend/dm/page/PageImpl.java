@@ -1,15 +1,16 @@
 package top.guoziyang.mydb.backend.dm.page;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
 public class PageImpl implements Page {
     private int pageNumber;   // 页面的页号，从1开始计数
     private byte[] data;      // 实际包含的字节数据
-    private boolean dirty;    // 标志着页面是否是脏页面，在缓存驱逐时，脏页面需要被写回磁盘
-    private Lock lock;        // 用于页面的锁
+    private AtomicBoolean dirty;    // 标志着页面是否是脏页面，脏页面由后台写线程或缓存驱逐时写回磁盘
+    private ReadWriteLock lock;     // 写锁用于刷盘时取得一致的快照，读锁由修改页面内容的线程持有
     
     private PageCache pc;  // 保存了一个 PageCache 的引用，方便在拿到 Page 的引用时可以快速对页面的缓存进行释放操作
 
@@ -17,27 +18,45 @@ public class PageImpl implements Page {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
-        lock = new ReentrantLock();
+        this.dirty = new AtomicBoolean(false);
+        lock = new ReentrantReadWriteLock();
     }
 
     public void lock() {
-        lock.lock();
+        lock.writeLock().lock();
     }
 
     public void unlock() {
-        lock.unlock();
+        lock.writeLock().unlock();
+    }
+
+    public boolean tryLock() {
+        return lock.writeLock().tryLock();
+    }
+
+    public void beginWrite() {
+        lock.readLock().lock();
+    }
+
+    public void endWrite() {
+        lock.readLock().unlock();
     }
 
     public void release() {
         pc.release(this);
     }
 
+    // 页面由干净变脏时通知缓存，由后台写线程负责写回
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if(!dirty) {
+            this.dirty.set(false);
+        } else if(this.dirty.compareAndSet(false, true) && pc != null) {
+            pc.markDirty(this);
+        }
     }
 
     public boolean isDirty() {
-        return dirty;
+        return dirty.get();
     }
 
     public int getPageNumber() {
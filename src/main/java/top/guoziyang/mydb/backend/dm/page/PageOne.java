@@ -2,7 +2,6 @@ package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
 
 /**
@@ -15,15 +14,20 @@ public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
         return raw;
     }
 
     public static void setVcOpen(Page pg) {
-        pg.setDirty(true);
-        setVcOpen(pg.getData());
+        pg.beginWrite();
+        try {
+            pg.setDirty(true);
+            setVcOpen(pg.getData());
+        } finally {
+            pg.endWrite();
+        }
     }
 
     private static void setVcOpen(byte[] raw) {
@@ -31,8 +35,13 @@ public class PageOne {
     }
 
     public static void setVcClose(Page pg) {
-        pg.setDirty(true);
-        setVcClose(pg.getData());
+        pg.beginWrite();
+        try {
+            pg.setDirty(true);
+            setVcClose(pg.getData());
+        } finally {
+            pg.endWrite();
+        }
     }
 
     private static void setVcClose(byte[] raw) {
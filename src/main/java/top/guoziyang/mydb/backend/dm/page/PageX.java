@@ -1,69 +1,248 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
- * PageX管理普通页
+ * PageX管理普通页，采用槽页结构
  * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * [FreeSpaceOffset] [Generation] [SlotCount] [Data ...] [空闲空间] [... Slot1] [Slot0]
+ * FreeSpaceOffset: 2字节 数据区空闲位置开始偏移，按无符号数解释
+ * Generation: 2字节 页面被回收的次数，会编入页内数据项的 UID，页面回收后指向旧数据项的 UID 全部失效
+ * SlotCount: 2字节 槽目录中的槽数
+ * 数据从页头之后向后增长，槽目录从页尾向前增长，每个槽 [Offset 2字节] [Length 2字节]
+ *
+ * UID 中记录的是槽号而不是数据的偏移，数据可以在页内移动：整理页面时无效数据项的空间被收回，
+ * 有效数据项向前靠拢，只需改写槽中的偏移。被整理掉的槽偏移为 0，槽号在页面回收之前不会重用，
+ * 保证仍然指向它的 UID 不会读到别的数据。
+ *
+ * 页内偏移只有2字节，64KB 的页面最后一个字节不使用，偏移最大为 MAX_OFFSET
  */
 public class PageX {
-    
+
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short OF_GEN = 2;
+    private static final short OF_SLOT_COUNT = 4;
+    public static final short OF_DATA = 6;
+    public static final int SLOT_SIZE = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
 
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setFSO(raw, OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    // 页大小为 pageSize 时，一个空页面能容纳的最大数据，需留出一个槽
+    public static int maxFreeSpace(int pageSize) {
+        return limit(pageSize) - OF_DATA - SLOT_SIZE;
+    }
+
+    // 数据区和槽目录可用的空间上界
+    private static int limit(int pageSize) {
+        return Math.min(pageSize, MAX_OFFSET);
+    }
+
+    private static void setFSO(byte[] raw, int ofData) {
+        putShort(raw, OF_FREE, ofData);
+    }
+
+    // 获取页面的代数
+    public static int getGeneration(Page pg) {
+        return getShort(pg.getData(), OF_GEN);
+    }
+
+    /**
+     * 回收页面：清空页面和槽目录并设置新的代数，旧数据不必抹去，之后的插入会覆盖
+     * 调用者需已写好回收日志，且保证页面中没有正在被使用的数据项
+     */
+    public static void reclaim(Page pg, int generation) {
+        pg.beginWrite();
+        try {
+            pg.setDirty(true);
+            setFSO(pg.getData(), OF_DATA);
+            putShort(pg.getData(), OF_GEN, generation);
+            putShort(pg.getData(), OF_SLOT_COUNT, 0);
+        } finally {
+            pg.endWrite();
+        }
     }
 
-    // 获取pg的FSO (剩余存储空间)
-    public static short getFSO(Page pg) {
+    // 获取pg的FSO (数据区空闲位置)
+    public static int getFSO(Page pg) {
         return getFSO(pg.getData());
     }
     // 获取后两个字节
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw) {
+        return getShort(raw, OF_FREE);
+    }
+
+    // 获取槽目录中的槽数，下一个插入的数据项使用这个槽号
+    public static int getSlotCount(Page pg) {
+        return getShort(pg.getData(), OF_SLOT_COUNT);
     }
 
-    // 将raw插入pg中，返回插入位置
+    /**
+     * 获取槽中数据项的偏移，槽不存在或者数据已被整理掉时返回 0
+     * 数据可能被整理移动，调用者需持有页面的修改锁（beginWrite）或独占锁
+     */
+    public static int getOffset(Page pg, int slot) {
+        byte[] raw = pg.getData();
+        if(slot >= getShort(raw, OF_SLOT_COUNT)) return 0;
+        return getShort(raw, slotPos(raw, slot));
+    }
+
+    // 将raw插入pg中，返回所用的槽号
     public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        pg.beginWrite();
+        try {
+            pg.setDirty(true);
+            byte[] data = pg.getData();
+            int slot = getShort(data, OF_SLOT_COUNT);
+            int offset = getFSO(data);
+            System.arraycopy(raw, 0, data, offset, raw.length);
+            setFSO(data, offset + raw.length);
+            putShort(data, OF_SLOT_COUNT, slot + 1);
+            setSlot(data, slot, offset, raw.length);
+            return (short)slot;
+        } finally {
+            pg.endWrite();
+        }
     }
 
-    // 获取页面的空闲空间大小
+    // 获取页面的空闲空间大小，即还能插入的最大数据项，已扣除新数据项的槽
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        return Math.max(0, freeBytes(pg.getData()) - SLOT_SIZE);
     }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true); // 将pg的dirty标志设置为true，表示pg的数据已经被修改
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length); // 将raw的数据复制到pg的数据中的offset位置
+    // 数据区末尾与槽目录之间的空闲字节数
+    private static int freeBytes(byte[] raw) {
+        return limit(raw.length) - getShort(raw, OF_SLOT_COUNT) * SLOT_SIZE - getFSO(raw);
+    }
 
-        short rawFSO = getFSO(pg.getData()); // 获取pg的当前空闲空间偏移量
-        if (rawFSO < offset + raw.length) { // 如果当前的空闲空间偏移量小于offset + raw.length
-            setFSO(pg.getData(), (short) (offset + raw.length)); // 将pg的空闲空间偏移量设置为offset + raw.length
+    /**
+     * 整理页面：丢弃 isLive 判定为无效的数据项（参数为数据项在页面中的偏移），其余数据项依次前移
+     * 调用者需保证页面中没有数据项正在被使用，整理期间持有页面的独占锁
+     * @return 收回的字节数
+     */
+    public static int compact(Page pg, IntPredicate isLive) {
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            int count = getShort(raw, OF_SLOT_COUNT);
+            List<int[]> live = new ArrayList<>();   // [槽号, 偏移, 长度]
+            for (int slot = 0; slot < count; slot ++) {
+                int pos = slotPos(raw, slot);
+                int offset = getShort(raw, pos);
+                if(offset == 0) continue;
+                if(isLive.test(offset)) {
+                    live.add(new int[]{slot, offset, getShort(raw, pos + 2)});
+                } else {
+                    setSlot(raw, slot, 0, 0);
+                }
+            }
+            // 按偏移从小到大前移，目标位置总不超过原位置，不会覆盖尚未移动的数据
+            live.sort((a, b) -> Integer.compare(a[1], b[1]));
+            int fso = getFSO(raw);
+            int to = OF_DATA;
+            for (int[] item : live) {
+                if(item[1] != to) {
+                    System.arraycopy(raw, item[1], raw, to, item[2]);
+                    setSlot(raw, item[0], to, item[2]);
+                }
+                to += item[2];
+            }
+            setFSO(raw, to);
+            pg.setDirty(true);
+            return fso - to;
+        } finally {
+            pg.unlock();
         }
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true); // 将pg的dirty标志设置为true，表示pg的数据已经被修改
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length); // 将raw的数据复制到pg的数据中的offset位置
+    /**
+     * 恢复时重做或撤销插入
+     * 槽已存在时覆盖其数据，槽的数据已被整理掉时跳过（整理掉的一定是无效数据项）；
+     * 槽不存在时扩展槽目录并追加数据，中间缺少的槽（未提交事务的插入）置空。
+     * 数据区放不下时，说明页面是整理之前的版本，先用 isLive 整理页面；仍然放不下时页面是回收之前的版本，
+     * 之后的回收日志会清空页面，这里只占住槽号。
+     */
+    public static void recoverInsert(Page pg, byte[] raw, short slot, IntPredicate isLive) {
+        int s = slot & 0xFFFF;
+        pg.beginWrite();
+        try {
+            pg.setDirty(true); // 将pg的dirty标志设置为true，表示pg的数据已经被修改
+            byte[] data = pg.getData();
+            int count = getShort(data, OF_SLOT_COUNT);
+            if(s < count) {
+                int pos = slotPos(data, s);
+                int offset = getShort(data, pos);
+                if(offset != 0) {
+                    System.arraycopy(raw, 0, data, offset, Math.min(raw.length, getShort(data, pos + 2)));
+                }
+                return;
+            }
+        } finally {
+            pg.endWrite();
+        }
+
+        int need = raw.length + (s + 1 - getSlotCount(pg)) * SLOT_SIZE;
+        if(freeBytes(pg.getData()) < need) {
+            compact(pg, isLive);
+        }
+        pg.beginWrite();
+        try {
+            byte[] data = pg.getData();
+            int count = getShort(data, OF_SLOT_COUNT);
+            putShort(data, OF_SLOT_COUNT, s + 1);
+            for (int i = count; i < s; i ++) {
+                setSlot(data, i, 0, 0);
+            }
+            if(freeBytes(data) < raw.length) {
+                setSlot(data, s, 0, 0);
+                return;
+            }
+            int offset = getFSO(data);
+            System.arraycopy(raw, 0, data, offset, raw.length);
+            setFSO(data, offset + raw.length);
+            setSlot(data, s, offset, raw.length);
+        } finally {
+            pg.endWrite();
+        }
+    }
+
+    // 将raw写入pg中slot槽的数据，槽的数据已被整理掉时跳过
+    public static void recoverUpdate(Page pg, byte[] raw, short slot) {
+        pg.beginWrite();
+        try {
+            int offset = getOffset(pg, slot & 0xFFFF);
+            if(offset == 0) return;
+            pg.setDirty(true); // 将pg的dirty标志设置为true，表示pg的数据已经被修改
+            System.arraycopy(raw, 0, pg.getData(), offset, raw.length); // 将raw的数据复制到pg的数据中的offset位置
+        } finally {
+            pg.endWrite();
+        }
+    }
+
+    private static int slotPos(byte[] raw, int slot) {
+        return limit(raw.length) - (slot + 1) * SLOT_SIZE;
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        int pos = slotPos(raw, slot);
+        putShort(raw, pos, offset);
+        putShort(raw, pos + 2, length);
+    }
+
+    private static int getShort(byte[] raw, int pos) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, pos, pos + 2)) & 0xFFFF;
+    }
+
+    private static void putShort(byte[] raw, int pos, int value) {
+        System.arraycopy(Parser.short2Byte((short)value), 0, raw, pos, 2);
     }
 }
@@ -0,0 +1,417 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 压缩存储的页面缓存
+ *
+ * 缓存中的页面仍是完整的一页，写回时用 Deflater 压缩，未命中时解压。
+ * 文件头之后的空间按 BLOCK_SIZE 分块，每个页面占用若干连续块，位置记录在页面映射表中：
+ * [Block][Length]
+ * Length 小于页大小表示压缩存储，等于页大小表示压缩后没有变小、按原样存储。
+ *
+ * 页面写回时总是写到新分配的位置，不覆盖旧位置。页面映射表保存在 .pmap 文件中，
+ * 只在数据文件 force 之后整体写入临时文件再原子替换，因此磁盘上的映射表引用的页面内容一定已经落盘。
+ * 被替换的旧位置如果还被磁盘上的映射表引用，要等新的映射表落盘后才能重新分配。
+ * 崩溃后页面回到上一次映射表落盘时的内容，之后的修改由日志恢复，与原地写回时页面未落盘的情况相同。
+ */
+public class CompressedPageCacheImpl extends PageCacheImpl {
+
+    public static final String MAP_SUFFIX = ".pmap";
+    static final int BLOCK_SIZE = 512;
+
+    private static final int MAP_MAGIC = 0x504D4150;   // "PMAP"
+
+    private FileChannel fc;
+    private File mapFile;
+    private int pageSize;
+
+    private Lock slotLock;              // 保护以下映射表和空间分配状态，不在锁内做 I/O
+    private int[] blocks;               // 页号 -> 起始块，下标 0 不用，-1 表示页面还没有写入过
+    private int[] lengths;              // 页号 -> 存储长度
+    private int[] durableBlocks;        // 磁盘上的映射表中各页面的起始块
+    private int[] syncingBlocks;        // 正在写入磁盘的映射表快照，没有时为 null
+    private BitSet used;                // 已占用的块
+    private List<long[]> pendingFree;   // 等待新映射表落盘后释放的位置，[起始块, 块数]
+    private boolean mapChanged;
+    private Lock syncLock;              // 串行化映射表的持久化
+
+    private ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+    private ThreadLocal<byte[]> buffers;
+
+    private AtomicLong logicalRead = new AtomicLong();
+    private AtomicLong physicalRead = new AtomicLong();
+    private AtomicLong logicalWritten = new AtomicLong();
+    private AtomicLong physicalWritten = new AtomicLong();
+    private AtomicLong mapWritten = new AtomicLong();
+
+    CompressedPageCacheImpl(File f, RandomAccessFile file, FileChannel fileChannel, int maxResource, PageCacheOptions opts) {
+        super(file, fileChannel, maxResource, opts);
+        this.fc = fileChannel;
+        String path = f.getPath();
+        if(path.endsWith(DB_SUFFIX)) {
+            path = path.substring(0, path.length() - DB_SUFFIX.length());
+        }
+        this.mapFile = new File(path + MAP_SUFFIX);
+        this.pageSize = getPageSize();
+        // 压缩失败时最多多出的字节数，按 zlib 的估计留出余量
+        int bufSize = pageSize + pageSize / 1000 + 64;
+        this.buffers = ThreadLocal.withInitial(() -> new byte[bufSize]);
+        this.slotLock = new ReentrantLock();
+        this.syncLock = new ReentrantLock();
+        this.used = new BitSet();
+        this.pendingFree = new ArrayList<>();
+        loadMap(getPageNumber());
+    }
+
+    /**
+     * 读入页面映射表，丢弃文件头记录的页数之后的页面，并据此重建块占用情况
+     */
+    private void loadMap(int pageCount) {
+        blocks = new int[pageCount + 1];
+        lengths = new int[pageCount + 1];
+        Arrays.fill(blocks, -1);
+        if(mapFile.exists()) {
+            byte[] raw = null;
+            try {
+                raw = Files.readAllBytes(mapFile.toPath());
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            if(raw.length < 12 || Parser.parseInt(Arrays.copyOfRange(raw, 0, 4)) != MAP_MAGIC) {
+                Panic.panic(Error.BadDataFileException);
+            }
+            int count = Parser.parseInt(Arrays.copyOfRange(raw, 4, 8));
+            int end = 8 + count * 8;
+            if(count < 0 || raw.length != end + 4) {
+                Panic.panic(Error.BadDataFileException);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, end);
+            if(Parser.parseInt(Arrays.copyOfRange(raw, end, end + 4)) != (int)crc.getValue()) {
+                Panic.panic(Error.BadDataFileException);
+            }
+            for (int pgno = 1; pgno <= Math.min(count, pageCount); pgno ++) {
+                int pos = 8 + (pgno - 1) * 8;
+                blocks[pgno] = Parser.parseInt(Arrays.copyOfRange(raw, pos, pos + 4));
+                lengths[pgno] = Parser.parseInt(Arrays.copyOfRange(raw, pos + 4, pos + 8));
+                if(blocks[pgno] >= 0) {
+                    used.set(blocks[pgno], blocks[pgno] + blockCount(lengths[pgno]));
+                }
+            }
+        }
+        durableBlocks = blocks.clone();
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] data) {
+        long slot = slotOf(pgno, data);
+        if(slot < 0) return;
+        int block = (int)(slot >>> 32), len = (int)slot;
+        if(len == pageSize) {
+            read(blockOffset(block), data);
+            return;
+        }
+        byte[] buf = buffers.get();
+        readFully(blockOffset(block), buf, len);
+        inflate(buf, len, data);
+    }
+
+    @Override
+    protected CompletableFuture<Void> readPageAsync(int pgno, byte[] data) {
+        long slot = slotOf(pgno, data);
+        if(slot < 0) return CompletableFuture.completedFuture(null);
+        int block = (int)(slot >>> 32), len = (int)slot;
+        if(len == pageSize) {
+            return readAsync(blockOffset(block), data, len).thenRun(() -> {});
+        }
+        // 完成回调在其他线程中执行，不能使用调用线程的缓冲区
+        byte[] buf = new byte[len];
+        return readAsync(blockOffset(block), buf, len).thenAccept(n -> {
+            if(n != len) {
+                Panic.panic(Error.BadDataFileException);
+            }
+            inflate(buf, len, data);
+        });
+    }
+
+    /**
+     * 取出页面的存储位置并记录读取量，高 32 位为起始块，低 32 位为长度
+     * 页面还没有写入过时把 data 填0并返回 -1，与原地存储时读到文件末尾之后一样
+     */
+    private long slotOf(int pgno, byte[] data) {
+        int block, len;
+        slotLock.lock();
+        try {
+            block = pgno < blocks.length ? blocks[pgno] : -1;
+            len = block < 0 ? 0 : lengths[pgno];
+        } finally {
+            slotLock.unlock();
+        }
+        logicalRead.addAndGet(data.length);
+        if(block < 0) {
+            Arrays.fill(data, (byte)0);
+            return -1;
+        }
+        physicalRead.addAndGet(len);
+        return ((long)block << 32) | len;
+    }
+
+    private void inflate(byte[] buf, int len, byte[] data) {
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(buf, 0, len);
+        try {
+            if(inf.inflate(data) != data.length || !inf.finished()) {
+                Panic.panic(Error.BadDataFileException);
+            }
+        } catch (DataFormatException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data) {
+        byte[] buf = buffers.get();
+        Deflater def = deflater.get();
+        def.reset();
+        def.setInput(data);
+        def.finish();
+        int len = def.deflate(buf);
+        byte[] out = buf;
+        if(!def.finished() || len >= pageSize) {
+            // 压缩后没有变小，按原样存储
+            out = data;
+            len = pageSize;
+        }
+
+        int block = allocate(blockCount(len));
+        write(blockOffset(block), len == pageSize ? out : Arrays.copyOf(out, len));
+        logicalWritten.addAndGet(data.length);
+        physicalWritten.addAndGet(len);
+
+        // 写完之后才让映射表指向新位置，读者不会看到写了一半的内容
+        slotLock.lock();
+        try {
+            ensureCapacity(pgno);
+            if(blocks[pgno] >= 0) {
+                freeOld(pgno);
+            }
+            blocks[pgno] = block;
+            lengths[pgno] = len;
+            mapChanged = true;
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    // 空间在写入时按需分配，不需要预分配区段
+    @Override
+    protected void ensureAllocated(int pgno) {
+    }
+
+    @Override
+    protected void truncateFile(int maxPgno) {
+        slotLock.lock();
+        try {
+            for (int pgno = maxPgno + 1; pgno < blocks.length; pgno ++) {
+                if(blocks[pgno] >= 0) {
+                    freeOld(pgno);
+                    blocks[pgno] = -1;
+                    mapChanged = true;
+                }
+            }
+            // 等待释放的块仍记在 used 中，不会被截掉
+            fc.truncate(blockOffset(used.length()));
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    /**
+     * 持久化页面映射表
+     * 先取快照，再 force 数据文件，保证快照引用的页面内容都已落盘
+     */
+    @Override
+    protected void onSync() {
+        syncLock.lock();
+        try {
+            int[] snapBlocks, snapLengths;
+            List<long[]> freeing;
+            slotLock.lock();
+            try {
+                if(!mapChanged) return;
+                snapBlocks = blocks.clone();
+                snapLengths = lengths.clone();
+                syncingBlocks = snapBlocks;
+                freeing = pendingFree;
+                pendingFree = new ArrayList<>();
+                mapChanged = false;
+            } finally {
+                slotLock.unlock();
+            }
+            force();
+            writeMap(snapBlocks, snapLengths);
+
+            slotLock.lock();
+            try {
+                durableBlocks = snapBlocks;
+                syncingBlocks = null;
+                for (long[] slot : freeing) {
+                    used.clear((int)slot[0], (int)(slot[0] + slot[1]));
+                }
+            } finally {
+                slotLock.unlock();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void writeMap(int[] snapBlocks, int[] snapLengths) {
+        int count = snapBlocks.length - 1;
+        ByteBuffer buf = ByteBuffer.allocate(12 + count * 8);
+        buf.putInt(MAP_MAGIC).putInt(count);
+        for (int pgno = 1; pgno <= count; pgno ++) {
+            buf.putInt(snapBlocks[pgno]).putInt(snapLengths[pgno]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int)crc.getValue());
+        buf.flip();
+
+        File tmp = new File(mapFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        mapWritten.addAndGet(buf.limit());
+    }
+
+    /**
+     * 释放页面当前占用的位置，调用者需持有 slotLock
+     * 磁盘上或正在写入的映射表还引用着这个位置时，推迟到下一次映射表落盘之后
+     */
+    private void freeOld(int pgno) {
+        int n = blockCount(lengths[pgno]);
+        if(references(durableBlocks, pgno) || references(syncingBlocks, pgno)) {
+            pendingFree.add(new long[]{blocks[pgno], n});
+        } else {
+            used.clear(blocks[pgno], blocks[pgno] + n);
+        }
+    }
+
+    private boolean references(int[] map, int pgno) {
+        return map != null && pgno < map.length && map[pgno] == blocks[pgno];
+    }
+
+    // 首次适配，找到 n 个连续的空闲块并占用
+    private int allocate(int n) {
+        slotLock.lock();
+        try {
+            int start = used.nextClearBit(0);
+            while(true) {
+                int next = used.nextSetBit(start);
+                if(next < 0 || next - start >= n) {
+                    used.set(start, start + n);
+                    return start;
+                }
+                start = used.nextClearBit(next);
+            }
+        } finally {
+            slotLock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int pgno) {
+        if(pgno < blocks.length) return;
+        int size = Math.max(pgno + 1, blocks.length * 2);
+        int old = blocks.length;
+        blocks = Arrays.copyOf(blocks, size);
+        lengths = Arrays.copyOf(lengths, size);
+        Arrays.fill(blocks, old, size, -1);
+    }
+
+    private void readFully(long offset, byte[] buf, int len) {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        try {
+            while(bb.hasRemaining()) {
+                if(fc.read(bb, offset + bb.position()) < 0) {
+                    Panic.panic(Error.BadDataFileException);
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static int blockCount(int len) {
+        return (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static long blockOffset(int block) {
+        return FileHeader.HEADER_SIZE + (long)block * BLOCK_SIZE;
+    }
+
+    /**
+     * 当前的压缩率和读写放大
+     */
+    public CompressionStats stats() {
+        CompressionStats s = new CompressionStats();
+        slotLock.lock();
+        try {
+            for (int pgno = 1; pgno < blocks.length; pgno ++) {
+                if(blocks[pgno] >= 0) {
+                    s.storedPages ++;
+                    s.storedBytes += lengths[pgno];
+                }
+            }
+            s.fileBlocks = used.cardinality();
+        } finally {
+            slotLock.unlock();
+        }
+        s.pageSize = pageSize;
+        s.logicalBytesRead = logicalRead.get();
+        s.physicalBytesRead = physicalRead.get();
+        s.logicalBytesWritten = logicalWritten.get();
+        s.physicalBytesWritten = physicalWritten.get();
+        s.mapBytesWritten = mapWritten.get();
+        return s;
+    }
+}
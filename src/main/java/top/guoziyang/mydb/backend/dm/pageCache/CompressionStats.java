@@ -0,0 +1,39 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+/**
+ * 压缩存储的统计信息
+ * 逻辑字节数按整页计算，物理字节数是实际读写数据文件的字节数
+ */
+public class CompressionStats {
+    public int pageSize;
+    public long storedPages;            // 已写入文件的页数
+    public long storedBytes;            // 这些页面当前版本占用的字节数
+    public long fileBlocks;             // 文件中被占用的块数，包括等待释放的旧版本
+
+    public long logicalBytesRead;
+    public long physicalBytesRead;
+    public long logicalBytesWritten;
+    public long physicalBytesWritten;
+    public long mapBytesWritten;        // 持久化页面映射表写入的字节数
+
+    // 压缩率，压缩后大小 / 原始大小
+    public double ratio() {
+        return storedPages == 0 ? 1 : (double)storedBytes / (storedPages * pageSize);
+    }
+
+    // 读放大，每读一个逻辑字节实际读文件的字节数
+    public double readAmplification() {
+        return logicalBytesRead == 0 ? 0 : (double)physicalBytesRead / logicalBytesRead;
+    }
+
+    // 写放大，每写回一个逻辑字节实际写文件的字节数，包括映射表
+    public double writeAmplification() {
+        return logicalBytesWritten == 0 ? 0 : (double)(physicalBytesWritten + mapBytesWritten) / logicalBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ratio=%.3f read-amp=%.3f write-amp=%.3f pages=%d blocks=%d",
+                ratio(), readAmplification(), writeAmplification(), storedPages, fileBlocks);
+    }
+}
@@ -0,0 +1,101 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 数据文件头
+ * 位于文件开头，占 HEADER_SIZE 字节，第 1 页从 HEADER_SIZE 处开始
+ *
+ * [Magic][PageCount][PageSize][Flags][Version]
+ * Magic 4字节，标识数据文件
+ * PageCount 4字节，逻辑页数，即已经分配出去的页数
+ * PageSize 4字节，页大小，创建数据库时确定，之后不再改变
+ * Flags 4字节，文件格式标志，创建数据库时确定
+ * Version 4字节，页面格式版本，页面布局改变时递增，版本不同的文件不能打开
+ *
+ * 文件按区段预分配，物理长度可能大于逻辑页数对应的长度，重新打开时以 PageCount 为准
+ */
+public class FileHeader {
+    public static final int HEADER_SIZE = 1 << 13;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_PAGE_COUNT = OF_MAGIC + 4;
+    private static final int OF_PAGE_SIZE = OF_PAGE_COUNT + 4;
+    private static final int OF_FLAGS = OF_PAGE_SIZE + 4;
+    private static final int OF_VERSION = OF_FLAGS + 4;
+    private static final int MAGIC = 0x4D594442;   // "MYDB"
+
+    // 1：PageX 头部加入页面代数
+    // 2：PageX 改为槽位页，UID 的低 16 位由偏移改为槽号
+    public static final int VERSION = 2;
+
+    public static final int FLAG_COMPRESSED = 1;    // 页面压缩存储，见 CompressedPageCacheImpl
+
+    public static byte[] initRaw(int pageSize, int flags) {
+        byte[] raw = new byte[HEADER_SIZE];
+        System.arraycopy(Parser.int2Byte(MAGIC), 0, raw, OF_MAGIC, 4);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
+        System.arraycopy(Parser.int2Byte(flags), 0, raw, OF_FLAGS, 4);
+        System.arraycopy(Parser.int2Byte(VERSION), 0, raw, OF_VERSION, 4);
+        return raw;
+    }
+
+    /**
+     * 从已有的数据文件读取文件头，文件头损坏或页面格式版本不同时 panic
+     */
+    public static byte[] read(FileChannel fc) {
+        byte[] raw = new byte[HEADER_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, buf.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(buf.hasRemaining() || !checkMagic(raw) || !isValidPageSize(getPageSize(raw))) {
+            Panic.panic(Error.BadDataFileException);
+        }
+        if(getVersion(raw) != VERSION) {
+            Panic.panic(Error.DataFileVersionException);
+        }
+        return raw;
+    }
+
+    public static boolean checkMagic(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_MAGIC, OF_MAGIC+4)) == MAGIC;
+    }
+
+    public static int getPageCount(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_COUNT, OF_PAGE_COUNT+4));
+    }
+
+    public static void setPageCount(byte[] raw, int pageCount) {
+        System.arraycopy(Parser.int2Byte(pageCount), 0, raw, OF_PAGE_COUNT, 4);
+    }
+
+    public static int getPageSize(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_PAGE_SIZE, OF_PAGE_SIZE+4));
+    }
+
+    public static int getVersion(byte[] raw) {
+        return Parser.parseInt(Arrays.copyOfRange(raw, OF_VERSION, OF_VERSION+4));
+    }
+
+    public static boolean isCompressed(byte[] raw) {
+        return (Parser.parseInt(Arrays.copyOfRange(raw, OF_FLAGS, OF_FLAGS+4)) & FLAG_COMPRESSED) != 0;
+    }
+
+    // 页大小必须是 MIN_PAGE_SIZE 到 MAX_PAGE_SIZE 之间的2的幂
+    public static boolean isValidPageSize(int pageSize) {
+        return pageSize >= PageCache.MIN_PAGE_SIZE && pageSize <= PageCache.MAX_PAGE_SIZE
+            && Integer.bitCount(pageSize) == 1;
+    }
+}
@@ -0,0 +1,44 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 页帧池
+ * 页面被驱逐后，其数据数组回收到池中，下一次未命中时直接复用，不再分配新的数组。
+ * 缓存装满之后页帧总数稳定在缓存容量附近，页帧长期存活，不会在老年代中不断产生需要回收的 8KB 数组。
+ *
+ * 页帧被回收后可能立即被另一个页面使用，页面被释放后不能再访问其数据。
+ */
+class FramePool {
+    private int pageSize;
+    private ArrayBlockingQueue<byte[]> free;
+    private AtomicInteger allocated;        // 共分配过的页帧数
+
+    FramePool(int capacity, int pageSize) {
+        this.pageSize = pageSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.allocated = new AtomicInteger(0);
+    }
+
+    // 取出一个页帧，内容是上一个页面留下的，调用者需要整页覆盖
+    byte[] acquire() {
+        byte[] frame = free.poll();
+        if(frame != null) {
+            return frame;
+        }
+        allocated.incrementAndGet();
+        return new byte[pageSize];
+    }
+
+    // 归还页帧，池满时直接丢弃
+    void recycle(byte[] frame) {
+        if(frame.length == pageSize) {
+            free.offer(frame);
+        }
+    }
+
+    int allocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,130 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 内存映射模式的页面缓存
+ *
+ * 文件头之后的页面区按 CHUNK_SIZE 分块映射，未命中时直接从映射内存拷贝页数据，不经过 read 系统调用，也不需要加锁。
+ * 映射只覆盖文件已有的长度，文件按区段扩展后，访问新页面时重新映射所在的块。
+ *
+ * 上层在写日志之前就会修改页面内容，如果直接把映射内存交给上层修改，操作系统可能在日志落盘前把页面写回，
+ * 破坏 WAL 的顺序。因此页面仍然是独立的 byte[]，只有写回脏页时（此时对应日志已经落盘）才拷贝回映射，
+ * 由 force 统一刷盘。
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    static final int CHUNK_SIZE = 1 << 26;          // 每块 64MB，是任何合法页大小的整数倍，页面不会跨块
+
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] chunks;     // 写时复制，读者无锁访问
+    private Lock mapLock;
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, PageCacheOptions opts) {
+        super(file, fileChannel, maxResource, opts);
+        this.fc = fileChannel;
+        this.chunks = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+    }
+
+    @Override
+    protected void read(long offset, byte[] data) {
+        MappedByteBuffer chunk = chunkFor(offset);
+        if(chunk == null) {
+            // 页面超出文件末尾，与 FileChannel 模式一致，读不到的部分保持为0
+            super.read(offset, data);
+            return;
+        }
+        chunk.get(chunkPos(offset), data);
+    }
+
+    // 从映射内存拷贝不需要等待 I/O，直接在调用线程中完成
+    @Override
+    protected CompletableFuture<Void> readPageAsync(int pgno, byte[] data) {
+        readPage(pgno, data);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    protected void write(long offset, byte[] data) {
+        MappedByteBuffer chunk = chunkFor(offset);
+        if(chunk == null) {
+            // 写到文件末尾之后，需要通过 FileChannel 扩展文件
+            super.write(offset, data);
+            return;
+        }
+        chunk.put(chunkPos(offset), data);
+    }
+
+    @Override
+    protected void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            if(chunk != null) chunk.force();
+        }
+        super.force();      // 通过 FileChannel 扩展文件时写入的页面
+    }
+
+    @Override
+    public void truncateByBgno(int maxPgno) {
+        super.truncateByBgno(maxPgno);
+        // 截断后旧映射可能超出文件末尾，访问会出错，全部丢弃后按需重新映射
+        mapLock.lock();
+        try {
+            chunks = new MappedByteBuffer[0];
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // 返回完整覆盖 offset 处一页的映射块，页面超出文件末尾时返回 null
+    private MappedByteBuffer chunkFor(long offset) {
+        int idx = (int)((offset - FileHeader.HEADER_SIZE) / CHUNK_SIZE);
+        int end = chunkPos(offset) + getPageSize();
+        MappedByteBuffer[] cs = chunks;
+        if(idx < cs.length && cs[idx] != null && cs[idx].capacity() >= end) {
+            return cs[idx];
+        }
+        return remap(idx, end);
+    }
+
+    // offset 在所在映射块内的位置
+    private static int chunkPos(long offset) {
+        return (int)((offset - FileHeader.HEADER_SIZE) % CHUNK_SIZE);
+    }
+
+    private MappedByteBuffer remap(int idx, int end) {
+        mapLock.lock();
+        try {
+            MappedByteBuffer[] cs = chunks;
+            if(idx < cs.length && cs[idx] != null && cs[idx].capacity() >= end) {
+                return cs[idx];
+            }
+            long start = FileHeader.HEADER_SIZE + (long)idx * CHUNK_SIZE;
+            long len = Math.min(CHUNK_SIZE, fc.size() - start);
+            if(len < end) {
+                return null;
+            }
+            // 只映射到文件末尾，READ_WRITE 映射超出文件长度会把文件撑大
+            MappedByteBuffer m = fc.map(MapMode.READ_WRITE, start, len);
+            cs = Arrays.copyOf(cs, Math.max(cs.length, idx + 1));
+            cs[idx] = m;
+            chunks = cs;
+            return m;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
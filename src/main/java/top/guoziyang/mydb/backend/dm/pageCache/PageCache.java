@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -11,19 +12,37 @@ import top.guoziyang.mydb.common.Error;
 
 public interface PageCache {
     
-    public static final int PAGE_SIZE = 1 << 13;
+    public static final int PAGE_SIZE = 1 << 13;        // 默认页大小，实际页大小由创建数据库时的配置决定
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
 
     int newPage(byte[] initData);               // 新建页面
     Page getPage(int pgno) throws Exception;    // 获取页面
+    CompletableFuture<Page> getPageAsync(int pgno); // 异步获取页面，未命中时不阻塞调用线程
     void close();                               // 关闭缓存
     void release(Page page);                    // 释放页面
 
     void truncateByBgno(int maxPgno);           // 根据最大页号截断缓存
     int getPageNumber();                        // 获取当前页面数量
-    void flushPage(Page pg);                    // 刷新页面
+    int getPageSize();                          // 获取页大小
+    void flushPage(Page pg);                    // 立即写回页面并刷盘
+    void markDirty(Page pg);                    // 页面由干净变脏，交给后台写线程写回
+    void checkpoint();                          // 写回所有脏页并刷盘，返回时之前的修改都已持久化
+    void prefetch(int pgno, int count);         // 异步预读从 pgno 开始的 count 页，只是提示，可能被丢弃
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, PageCacheOptions.defaults());
+    }
+
+    public static PageCacheImpl create(String path, long memory, PageCacheOptions opts) {
+        if(!FileHeader.isValidPageSize(opts.pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
+        if(opts.compress) {
+            // 同名数据库留下的页面映射表已经没有意义
+            new File(path+CompressedPageCacheImpl.MAP_SUFFIX).delete();
+        }
         try {
             if(!f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
@@ -43,10 +62,14 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(f, raf, fc, (int)(memory/opts.pageSize), opts, opts.compress);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, PageCacheOptions.defaults());
+    }
+
+    public static PageCacheImpl open(String path, long memory, PageCacheOptions opts) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -63,6 +86,22 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        // 缓存页数取决于文件中记录的页大小，是否压缩也由文件决定
+        byte[] header = FileHeader.read(fc);
+        int pageSize = FileHeader.getPageSize(header);
+        return newPageCache(f, raf, fc, (int)(memory/pageSize), opts, FileHeader.isCompressed(header));
+    }
+
+    private static PageCacheImpl newPageCache(File f, RandomAccessFile raf, FileChannel fc, int maxResource, PageCacheOptions opts, boolean compressed) {
+        PageCacheImpl pc;
+        if(compressed) {
+            pc = new CompressedPageCacheImpl(f, raf, fc, maxResource, opts);
+        } else if(opts.mmap) {
+            pc = new MappedPageCacheImpl(raf, fc, maxResource, opts);
+        } else {
+            pc = new PageCacheImpl(raf, fc, maxResource, opts);
+        }
+        pc.openAsync(f);
+        return pc;
     }
 }
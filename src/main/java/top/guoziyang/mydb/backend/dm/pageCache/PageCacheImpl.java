@@ -1,32 +1,108 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.TwoQueuePolicy;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
+/**
+ * 页面缓存
+ * 页面释放后仍常驻内存，只有缓存满时才按 2Q 策略驱逐未被引用的页面，脏页在驱逐时写回
+ * 2Q 保证大范围扫描只会轮换一小部分缓存，热点页面（如 B+ 树内部节点）不会被冲掉
+ * 页面读写都使用带位置参数的 FileChannel 读写，不依赖通道的当前位置，不同页面的 I/O 可以并行
+ *
+ * 前台线程修改页面只会把页面标记为脏，脏页由后台写线程按页号顺序成批写回，每批只 force 一次。
+ * 脏页超过一定比例时唤醒写线程，超过上限时前台线程在获取页面前等待写线程追上。
+ * 写回在页面的独占锁内进行，修改页面的线程在写完日志前一直持有页面的修改锁，因此不会写出日志之前的修改。
+ * 数据页的持久性由日志保证，写回页面不需要立即 force，需要页面持久化时调用 checkpoint。
+ *
+ * 文件开头是 FileHeader，记录逻辑页数。文件按区段（extent）预分配，一次写满一个区段的0，
+ * 之后 newPage 只在内存中分配页号，直到区段用完。逻辑页数在 checkpoint、截断和关闭时写回文件头。
+ *
+ * getPage 检测到按页号顺序访问时，由预读线程池提前把后面的页面读入缓存，顺序扫描不必每页都等一次 I/O。
+ * 预读的页面载入后不被引用，和普通页面一样按 2Q 淘汰，不会冲掉热点页面。
+ *
+ * 页面的数据数组来自页帧池，页面被驱逐时回收，未命中时复用，缓存稳定后读盘不再分配页数组。
+ *
+ * getPageAsync 未命中时通过 AsynchronousFileChannel 发起读取，调用者可以一次发出多个页面的读取，
+ * 让设备的队列深度得到利用；getPage 仍在调用线程中同步读取，单页读取不必切换线程。
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
+    private static final double DIRTY_BACKGROUND_RATIO = 0.25;     // 脏页超过该比例时唤醒后台写线程
+    private static final double DIRTY_MAX_RATIO = 0.75;            // 脏页超过该比例时前台线程等待
+    private static final long FLUSH_INTERVAL_MS = 1000;            // 后台写线程至少每隔这么久写回一次全部脏页
+    private static final long THROTTLE_WAIT_MS = 100;              // 前台线程单次最多等待的时间
+    private static final int BATCH_PAGES = 256;                    // 每批写回的页数，每批 force 一次
+    private static final int READ_AHEAD_PAGES = 32;                // 顺序访问时的预读窗口
+    private static final int PREFETCH_THREADS = 2;                 // 预读线程数
+    private static final int PREFETCH_QUEUE = 256;                 // 排队的预读请求上限，超出的直接丢弃
+
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
+    private AsynchronousFileChannel asyncFc;    // 异步读取用的通道，没有文件路径时为 null，退化为同步读取
+
+    private int pageSize;
+    private FramePool frames;
+
+    private AtomicInteger pageNumbers;      // 逻辑页数，已分配出去的最大页号
+    private volatile int allocatedPages;    // 文件中已预分配的页数
+    private int extentPages;                // 每次预分配的页数
+    private volatile int readablePages;     // 已写入初始内容、可以预读的页数
+    private Lock extentLock;                // 分配新页面时持有，新页面按页号顺序写入
+    private byte[] header;
 
-    private AtomicInteger pageNumbers;
+    private ConcurrentSkipListMap<Integer, Page> dirtyPages;    // 待写回的脏页，按页号排序
+    private AtomicInteger dirtyCount;                           // 脏页数
+    private int backgroundDirty;
+    private int maxDirty;
+    private Lock flushing;              // 后台写线程与 checkpoint 互斥，保证 checkpoint 返回时所有写回都已 force
+    private Lock writerLock;
+    private Condition writerWakeup;     // 唤醒后台写线程
+    private Condition cleaned;          // 一批脏页写回完成
+    private volatile boolean closed;
+    private Thread writer;
+
+    private ThreadPoolExecutor prefetcher;
+    private volatile int lastPgno = -1;             // 上一次 getPage 的页号，-1 表示还没有访问过
+    private AtomicInteger readAheadUntil;           // 已经发起预读的最大页号
+
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(1 << 20);   // 预分配时写入的0
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, PageCacheOptions.defaults());
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, PageCacheOptions opts) {
+        super(maxResource, new TwoQueuePolicy(maxResource));
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -38,21 +114,151 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        if(length == 0) {
+            // 新文件，按配置的页大小和格式写入文件头
+            this.header = FileHeader.initRaw(opts.pageSize, opts.compress ? FileHeader.FLAG_COMPRESSED : 0);
+            writeHeader();
+            length = FileHeader.HEADER_SIZE;
+        } else {
+            this.header = FileHeader.read(fileChannel);
+        }
+        this.pageSize = FileHeader.getPageSize(header);
+        this.frames = new FramePool(maxResource, pageSize);
+        this.allocatedPages = (int)((length - FileHeader.HEADER_SIZE) / pageSize);
+        if(FileHeader.isCompressed(header)) {
+            // 压缩存储时文件长度与页数无关
+            this.pageNumbers = new AtomicInteger(FileHeader.getPageCount(header));
+        } else {
+            this.pageNumbers = new AtomicInteger(Math.min(FileHeader.getPageCount(header), allocatedPages));
+        }
+        this.extentPages = opts.extentPages(pageSize);
+        this.readablePages = pageNumbers.get();
+        this.extentLock = new ReentrantLock();
+
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.dirtyCount = new AtomicInteger(0);
+        this.backgroundDirty = (int)(maxResource * DIRTY_BACKGROUND_RATIO);
+        this.maxDirty = (int)(maxResource * DIRTY_MAX_RATIO);
+        this.flushing = new ReentrantLock();
+        this.writerLock = new ReentrantLock();
+        this.writerWakeup = writerLock.newCondition();
+        this.cleaned = writerLock.newCondition();
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.readAheadUntil = new AtomicInteger(0);
+        this.writer = new Thread(this::writerLoop, "page-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
     }
 
+    // 打开异步读取用的通道，与 fc 指向同一个文件
+    void openAsync(File f) {
+        try {
+            asyncFc = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 新页面从已预分配的区段中取页号，区段用完时才扩展文件；写入不 force，其持久性由日志保证
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
-        return pgno;
+        throttle();
+        extentLock.lock();
+        try {
+            int pgno = pageNumbers.incrementAndGet();
+            ensureAllocated(pgno);
+            writePage(pgno, initData);
+            readablePages = pgno;
+            return pgno;
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
+    /**
+     * 保证文件已经覆盖到 pgno，不够时按区段扩展
+     * 扩展的部分一次性写入0，让文件系统真正分配空间，而不是留下稀疏文件
+     * 调用者需持有 extentLock
+     */
+    protected void ensureAllocated(int pgno) {
+        if(pgno <= allocatedPages) return;
+        try {
+            while(allocatedPages < pgno) {
+                long offset = pageOffset(allocatedPages + 1);
+                long remaining = (long)extentPages * pageSize;
+                ByteBuffer zeros = ZEROS.duplicate();
+                while(remaining > 0) {
+                    zeros.clear().limit((int)Math.min(zeros.capacity(), remaining));
+                    int n = fc.write(zeros, offset);
+                    offset += n;
+                    remaining -= n;
+                }
+                allocatedPages += extentPages;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     public Page getPage(int pgno) throws Exception {
+        throttle();
+        readAhead(pgno);
         return get((long)pgno);
     }
 
+    public CompletableFuture<Page> getPageAsync(int pgno) {
+        throttle();
+        readAhead(pgno);
+        return getAsync((long)pgno);
+    }
+
+    public void prefetch(int pgno, int count) {
+        int last = Math.min(pgno + count - 1, readablePages);
+        for (int i = Math.max(pgno, 1); i <= last; i ++) {
+            if(isCached(i)) continue;
+            final int p = i;
+            prefetcher.execute(() -> loadAhead(p));
+        }
+    }
+
+    /**
+     * 在预读线程中把页面载入缓存后立即释放，缓存满且全部被引用时放弃
+     * 载入期间文件被截断时，丢弃读到的页面
+     */
+    private void loadAhead(int pgno) {
+        if(closed || pgno > readablePages) return;
+        try {
+            get((long)pgno);
+        } catch (Exception e) {
+            return;
+        }
+        release((long)pgno);
+        if(pgno > readablePages) {
+            discard(pgno);
+        }
+    }
+
+    /**
+     * 检测顺序访问：本次页号紧接上次页号时，保证后面至少还有半个窗口已发起预读，不够时再预读一个窗口
+     * 多个线程交替访问时检测可能失效，只会少预读，不影响正确性
+     */
+    private void readAhead(int pgno) {
+        int prev = lastPgno;
+        lastPgno = pgno;
+        if(pgno != prev + 1) return;
+        int until = readAheadUntil.get();
+        boolean inWindow = until >= pgno && until <= pgno + READ_AHEAD_PAGES;
+        if(inWindow && until - pgno > READ_AHEAD_PAGES / 2) return;
+        int from = inWindow ? until + 1 : pgno + 1;
+        int to = Math.min(from + READ_AHEAD_PAGES - 1, readablePages);
+        if(from > to || !readAheadUntil.compareAndSet(until, to)) return;
+        prefetch(from, to - from + 1);
+    }
+
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
      */
@@ -60,34 +266,126 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     protected Page getForCache(long key) throws Exception {
         // 将key转换为页码
         int pgno = (int) key;
-        // 计算页码对应的偏移量
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        // 分配一个大小为 PAGE_SIZE 的 ByteBuffer
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        // 锁定文件，确保线程安全
-        fileLock.lock();
-        try {
-            // 设置文件通道的位置为计算出的偏移量
-            fc.position(offset);
-            // 从文件通道读取一页数据到ByteBuffer
-            fc.read(buf);
+        // 从页帧池取一个页帧，从文件读取页数据
+        byte[] data = frames.acquire();
+        readPage(pgno, data);
+        // 使用读取到的数据、页码和当前对象创建一个新的PageImpl对象并返回
+        return new PageImpl(pgno, data, this);
+    }
+
+    @Override
+    protected CompletableFuture<Page> getForCacheAsync(long key) {
+        int pgno = (int) key;
+        byte[] data = frames.acquire();
+        return readPageAsync(pgno, data).handle((v, err) -> {
+            if(err != null) {
+                frames.recycle(data);
+                throw err instanceof RuntimeException ? (RuntimeException)err : new CompletionException(err);
+            }
+            return new PageImpl(pgno, data, this);
+        });
+    }
+
+    /**
+     * 读取第 pgno 页的内容，子类可以改变页面在文件中的存放方式
+     */
+    protected void readPage(int pgno, byte[] data) {
+        read(pageOffset(pgno), data);
+    }
+
+    /**
+     * 写入第 pgno 页的内容，不刷盘
+     */
+    protected void writePage(int pgno, byte[] data) {
+        write(pageOffset(pgno), data);
+    }
+
+    /**
+     * 异步读取第 pgno 页的内容
+     */
+    protected CompletableFuture<Void> readPageAsync(int pgno, byte[] data) {
+        return readAsync(pageOffset(pgno), data, data.length).thenRun(() -> {});
+    }
+
+    /**
+     * 从 offset 处异步读取 len 字节到 data，读到文件末尾时剩余部分填0，完成时返回实际读到的字节数
+     * 没有异步通道时在调用线程中同步读取
+     */
+    protected CompletableFuture<Integer> readAsync(long offset, byte[] data, int len) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        if(asyncFc == null) {
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+            try {
+                while(buf.hasRemaining()) {
+                    if(fc.read(buf, offset + buf.position()) < 0) break;
+                }
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+            Arrays.fill(data, buf.position(), len, (byte)0);
+            future.complete(buf.position());
+            return future;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+        asyncFc.read(buf, offset, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer n, Void attachment) {
+                if(n >= 0 && buf.hasRemaining()) {
+                    // 读了一部分，继续读剩下的
+                    asyncFc.read(buf, offset + buf.position(), null, this);
+                    return;
+                }
+                Arrays.fill(data, buf.position(), len, (byte)0);
+                future.complete(buf.position());
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 从 offset 处读取一页数据，读到文件末尾时剩余部分填0
+     */
+    protected void read(long offset, byte[] data) {
+        readFully(offset, data);
+    }
+
+    /**
+     * 将一页数据写到 offset 处，文件不够长时会被扩展，不刷盘
+     */
+    protected void write(long offset, byte[] data) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data); // 将Page的数据包装成ByteBuffer
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position()); // 将数据写入到文件的指定位置
+            }
+        } catch (IOException e) {
+            Panic.panic(e); // 如果发生异常，调用Panic.panic方法处理
+        }
+    }
+
+    /**
+     * 强制将已写入的数据从操作系统的缓存刷新到磁盘
+     */
+    protected void force() {
+        try {
+            fc.force(false);
         } catch (IOException e) {
-            // 如果发生异常，调用Panic.panic方法处理
             Panic.panic(e);
         }
-        // 无论是否发生异常，都要解锁
-        fileLock.unlock();
-        // 使用读取到的数据、页码和当前对象创建一个新的PageImpl对象并返回
-        return new PageImpl(pgno, buf.array(), this);
     }
 
+    // 页面被驱逐，此时已没有线程引用它，脏页直接写回，之后回收页帧
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
-        }
+        writeBack(pg, true);
+        dirtyPages.remove(pg.getPageNumber(), pg);
+        frames.recycle(pg.getData());
     }
 
     public void release(Page page) {
@@ -95,40 +393,211 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     public void flushPage(Page pg) {
-        flush(pg);
+        writeBack(pg, true);
+        force();
+        onSync();
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber(); // 获取Page的页码
-        long offset = pageOffset(pgno); // 计算Page在文件中的偏移量
+    public void markDirty(Page pg) {
+        dirtyPages.put(pg.getPageNumber(), pg);
+        if(dirtyCount.incrementAndGet() > backgroundDirty) {
+            signal(writerWakeup);
+        }
+    }
 
-        fileLock.lock(); // 加锁，确保线程安全
+    public void checkpoint() {
+        flushing.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData()); // 将Page的数据包装成ByteBuffer
-            fc.position(offset);       // 设置文件通道的位置
-            fc.write(buf);             // 将数据写入到文件中
-            fc.force(false);  // 强制将数据从操作系统的缓存刷新到磁盘
-        } catch (IOException e) {
-            Panic.panic(e); // 如果发生异常，调用Panic.panic方法处理
+            flushDirty(true);
+            writeHeader();
+            force();
+            onSync();
         } finally {
-            fileLock.unlock(); // 最后，无论是否发生异常，都要解锁
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * 在页面的独占锁内写回页面并清除脏标记，同一页面的多次写回因此不会乱序
+     * wait 为 false 时页面正在被修改则放弃，返回 false
+     */
+    private boolean writeBack(Page pg, boolean wait) {
+        if(wait) {
+            pg.lock();
+        } else if(!pg.tryLock()) {
+            return false;
+        }
+        try {
+            if(!pg.isDirty()) return true;
+            writePage(pg.getPageNumber(), pg.getData());
+            pg.setDirty(false);
+            dirtyCount.decrementAndGet();
+            return true;
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 按页号顺序写回当前所有脏页，每 BATCH_PAGES 页 force 一次
+     * 调用者需持有 flushing
+     */
+    private void flushDirty(boolean wait) {
+        List<Page> busy = new ArrayList<>();
+        int batch = 0;
+        Map.Entry<Integer, Page> e;
+        while((e = dirtyPages.pollFirstEntry()) != null) {
+            if(!writeBack(e.getValue(), wait)) {
+                busy.add(e.getValue());     // 正在被修改，留到下一轮
+                continue;
+            }
+            if(++ batch == BATCH_PAGES) {
+                force();
+                batch = 0;
+                signal(cleaned);
+            }
+        }
+        if(batch > 0) {
+            force();
+        }
+        for (Page pg : busy) {
+            if(pg.isDirty()) dirtyPages.putIfAbsent(pg.getPageNumber(), pg);
+        }
+        signal(cleaned);
+    }
+
+    private void writerLoop() {
+        while(!closed) {
+            writerLock.lock();
+            try {
+                if(dirtyCount.get() <= backgroundDirty && !closed) {
+                    writerWakeup.await(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                writerLock.unlock();
+            }
+            if(closed) return;
+            flushing.lock();
+            try {
+                flushDirty(false);
+            } finally {
+                flushing.unlock();
+            }
+        }
+    }
+
+    /**
+     * 脏页过多时等待后台写线程追上
+     * 等待有时间上限：调用者可能持有其他页面的修改锁，写线程会跳过这些页面
+     */
+    private void throttle() {
+        if(dirtyCount.get() <= maxDirty) return;
+        writerLock.lock();
+        try {
+            writerWakeup.signal();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(THROTTLE_WAIT_MS);
+            while(dirtyCount.get() > maxDirty && !closed && nanos > 0) {
+                nanos = cleaned.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private void signal(Condition c) {
+        writerLock.lock();
+        try {
+            c.signalAll();
+        } finally {
+            writerLock.unlock();
         }
     }
 
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        flushing.lock();
+        try {
+            readablePages = Math.min(readablePages, maxPgno);
+            // 丢弃缓存中被截掉的页面，这些页面不再需要写回
+            for (int pgno = maxPgno + 1; pgno <= pageNumbers.intValue(); pgno ++) {
+                discard(pgno);
+            }
+            for (Page pg : dirtyPages.tailMap(maxPgno, false).values()) {
+                dirtyPages.remove(pg.getPageNumber(), pg);
+                if(pg.isDirty()) {
+                    pg.setDirty(false);
+                    dirtyCount.decrementAndGet();
+                }
+            }
+            truncateFile(maxPgno);
+            pageNumbers.set(maxPgno);
+            readablePages = maxPgno;
+            writeHeader();
+            force();
+            onSync();
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * 截掉 maxPgno 之后的页面占用的文件空间
+     */
+    protected void truncateFile(int maxPgno) {
         try {
-            file.setLength(size);
+            file.setLength(pageOffset(maxPgno + 1));
         } catch (IOException e) {
             Panic.panic(e);
         }
-        pageNumbers.set(maxPgno);
+        allocatedPages = maxPgno;
+    }
+
+    /**
+     * 在文件 force 之后调用，此时之前写入的页面都已落盘，子类在这里持久化自己的元数据
+     */
+    protected void onSync() {
     }
 
     @Override
     public void close() {
+        // 先停止后台写线程和预读线程，再由缓存写回所有脏页，最后 force 一次
+        stopBackground();
         super.close();
+        writeHeader();
+        force();
+        onSync();
+        closeFiles();
+    }
+
+    /**
+     * 模拟进程崩溃，仅供测试：停止后台线程后直接关闭文件，缓存中的脏页、文件头和子类的元数据都不写回
+     * 之后不能再使用这个实例
+     */
+    public void crash() {
+        stopBackground();
+        closeFiles();
+    }
+
+    private void stopBackground() {
+        stopWriter();
+        // 不能中断预读线程，线程在 FileChannel 读写中被中断会关闭通道
+        prefetcher.getQueue().clear();
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void closeFiles() {
         try {
+            if(asyncFc != null) {
+                asyncFc.close();
+            }
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -136,12 +605,68 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
     }
 
+    private void stopWriter() {
+        closed = true;
+        signal(writerWakeup);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将逻辑页数写入文件头，不刷盘
+     * 文件头不经过 write，映射模式下文件头不在映射范围内
+     */
+    private void writeHeader() {
+        synchronized(header) {
+            if(pageNumbers != null) {
+                FileHeader.setPageCount(header, pageNumbers.get());
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                while(buf.hasRemaining()) {
+                    fc.write(buf, buf.position());
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void readFully(long offset, byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        Arrays.fill(data, buf.position(), data.length, (byte)0);
+    }
+
+    // 共分配过的页帧数
+    int getAllocatedFrames() {
+        return frames.allocated();
+    }
+
+    // 当前脏页数
+    int getDirtyCount() {
+        return dirtyCount.get();
+    }
+
     public int getPageNumber() {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    long pageOffset(int pgno) {
+        return FileHeader.HEADER_SIZE + (long)(pgno-1) * pageSize;
     }
     
 }
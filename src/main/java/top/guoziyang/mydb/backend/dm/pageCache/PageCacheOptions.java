@@ -0,0 +1,22 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+/**
+ * 创建或打开页面缓存时的可选配置
+ */
+public class PageCacheOptions {
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 22;      // 4MB
+
+    public boolean mmap;                            // 是否以内存映射模式访问数据文件
+    public int extentSize = DEFAULT_EXTENT_SIZE;    // 数据文件每次扩展的大小，向上取整到整页
+    public int pageSize = PageCache.PAGE_SIZE;      // 页大小，只在创建时生效，打开已有文件时以文件头为准
+    public boolean compress;                        // 是否压缩存储页面，只在创建时生效，压缩模式下忽略 mmap
+
+    public static PageCacheOptions defaults() {
+        return new PageCacheOptions();
+    }
+
+    // 每个区段的页数
+    int extentPages(int pageSize) {
+        return Math.max(1, (extentSize + pageSize - 1) / pageSize);
+    }
+}
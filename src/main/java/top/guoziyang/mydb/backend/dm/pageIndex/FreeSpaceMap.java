@@ -0,0 +1,178 @@
+package top.guoziyang.mydb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 持久化的空闲空间表，保存在 .fsm 文件中
+ * [Magic][PageCount][Category]*PageCount[CRC]
+ * 每页一字节：低 6 位是空闲空间所在的 PageIndex 区间，最高位表示页面含有无效数据项、等待回收
+ *
+ * 插入和回收时在内存中维护，正常关闭时写入文件。打开时如果上次是正常关闭，直接用它填充 PageIndex，
+ * 不必读取每个页面。区间只记录空闲空间的下界，按它选出的页面一定放得下。
+ * 崩溃后页面可能已经与表不一致，由 DataManager 重新扫描页面重建。
+ */
+public class FreeSpaceMap {
+
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final int MAGIC = 0x4653504D;   // "FSPM"
+    private static final int SPARSE = 0x80;
+    private static final int CATEGORY_MASK = 0x3F;
+
+    private File file;
+    private int threshold;
+    private Lock lock;
+    private byte[] map;         // 下标为页号
+    private int pageCount;
+    private boolean changed;
+
+    private FreeSpaceMap(File file, int pageSize) {
+        this.file = file;
+        this.threshold = pageSize / PageIndex.INTERVALS_NO;
+        this.lock = new ReentrantLock();
+        this.map = new byte[64];
+    }
+
+    // 新建数据库时使用，删除同名数据库留下的文件
+    public static FreeSpaceMap create(String path, int pageSize) {
+        File f = new File(path + FSM_SUFFIX);
+        f.delete();
+        return new FreeSpaceMap(f, pageSize);
+    }
+
+    public static FreeSpaceMap open(String path, int pageSize) {
+        return new FreeSpaceMap(new File(path + FSM_SUFFIX), pageSize);
+    }
+
+    /**
+     * 读入文件，文件不存在、损坏或者页数超过 maxPages 时返回 false，此时表为空
+     * 返回 true 时表中记录了前 getPageCount() 页
+     */
+    public boolean load(int maxPages) {
+        if(!file.exists()) return false;
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(raw.length < 12 || Parser.parseInt(Arrays.copyOfRange(raw, 0, 4)) != MAGIC) return false;
+        int count = Parser.parseInt(Arrays.copyOfRange(raw, 4, 8));
+        if(count < 0 || count > maxPages || raw.length != 8 + count + 4) return false;
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, 8 + count);
+        if(Parser.parseInt(Arrays.copyOfRange(raw, 8 + count, 12 + count)) != (int)crc.getValue()) return false;
+        lock.lock();
+        try {
+            map = new byte[Math.max(64, count + 1)];
+            System.arraycopy(raw, 8, map, 1, count);
+            pageCount = count;
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    // 记录页面的空闲空间
+    public void set(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            ensureCapacity(pgno);
+            map[pgno] = (byte)((map[pgno] & SPARSE) | Math.min(freeSpace / threshold, CATEGORY_MASK));
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 记录页面是否含有等待回收的无效数据项
+    public void setSparse(int pgno, boolean sparse) {
+        lock.lock();
+        try {
+            ensureCapacity(pgno);
+            map[pgno] = (byte)(sparse ? map[pgno] | SPARSE : map[pgno] & ~SPARSE);
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 页面空闲空间的下界，没有记录的页面返回 0
+    public int getFreeSpace(int pgno) {
+        lock.lock();
+        try {
+            if(pgno >= map.length) return 0;
+            return (map[pgno] & CATEGORY_MASK) * threshold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSparse(int pgno) {
+        lock.lock();
+        try {
+            return (map[pgno] & SPARSE) != 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * 写入文件：先写临时文件并刷盘，再原子替换
+     */
+    public void save() {
+        byte[] snapshot;
+        int count;
+        lock.lock();
+        try {
+            if(!changed && file.exists()) return;
+            count = pageCount;
+            snapshot = Arrays.copyOfRange(map, 1, count + 1);
+            changed = false;
+        } finally {
+            lock.unlock();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(12 + count);
+        buf.putInt(MAGIC).putInt(count).put(snapshot);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int)crc.getValue());
+        buf.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void ensureCapacity(int pgno) {
+        if(pgno >= map.length) {
+            map = Arrays.copyOf(map, Math.max(pgno + 1, map.length * 2));
+        }
+        pageCount = Math.max(pageCount, pgno);
+    }
+}
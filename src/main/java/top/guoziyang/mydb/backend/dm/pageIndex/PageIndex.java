@@ -1,65 +1,146 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
+/**
+ * 页面空闲空间索引
+ *
+ * 按空闲空间把页面分到 INTERVALS_NO+1 个区间，每个区间是一个无锁队列，select 和 add 不需要加锁。
+ * 页面被 select 取走后，直到插入完成 add 回来之前不在索引中，同一页面不会同时被两个线程插入。
+ *
+ * 另外按线程把插入者分到若干条带，每个条带记住上一次插入的页面（当前插入页）。
+ * 插入完成后 putBack 优先把页面放回当前线程的条带，select 优先使用条带中的页面，
+ * 不同条带的线程各自向不同的页面插入，不会争抢区间队列中的同几个页面，也不必因为抢不到而新建页面。
+ * 其他来源的页面（新建、整理或回收后的页面、启动时填充）由 add 放入区间，任何插入线程都能选到。
+ */
 public class PageIndex {
     // 将一页划成40个区间
-    private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;   // 204
+    static final int INTERVALS_NO = 40;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private final int threshold;    // 每个区间的大小，8KB 的页面为 204
+    private ConcurrentLinkedDeque<PageInfo>[] lists;
+    private AtomicReferenceArray<PageInfo> stripes;     // 各条带的当前插入页，被使用时为 null
+    private int stripeMask;
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        this(PageCache.PAGE_SIZE);
+    }
+
+    public PageIndex(int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
+        lists = newLists(INTERVALS_NO+1);
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedDeque<>();
         }
+        // 条带数取不小于处理器数两倍的2的幂，减少不同线程落到同一条带的机会
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        stripes = new AtomicReferenceArray<>(n);
+        stripeMask = n - 1;
     }
 
+    /**
+     * 把页面放入对应区间
+     */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        lists[freeSpace / threshold].offer(new PageInfo(pgno, freeSpace));
+    }
+
+    /**
+     * 插入线程放回它 select 到的页面，当前线程的条带空闲时作为它的当前插入页，否则放入对应区间
+     */
+    public void putBack(int pgno, int freeSpace) {
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        if(stripes.compareAndSet(stripe(), null, pi)) {
+            return;
         }
+        lists[freeSpace / threshold].offer(pi);
     }
 
     /**
      * 根据给定的空间大小选择一个 PageInfo 对象。
+     * 优先使用当前线程条带中的页面，空间不够时把它放回区间，再从区间中查找。
      * @param spaceSize 需要的空间大小
      * @return 一个 PageInfo 对象，其空闲空间大于或等于给定的空间大小。如果没有找到合适的 PageInfo，返回 null。
      */
     public PageInfo select(int spaceSize) {
-        lock.lock(); // 获取锁，确保线程安全
-        try {
-            int number = spaceSize / THRESHOLD; // 计算需要的空间大小对应的区间编号
-            // 此处 +1 主要为了向上取整
+        PageInfo current = stripes.getAndSet(stripe(), null);
+        if(current != null) {
+            // 与区间的向上取整一致，只使用空间严格大于需要的页面
+            if(current.freeSpace > spaceSize) {
+                return current;
+            }
+            lists[current.freeSpace / threshold].offer(current);
+        }
+
+        int number = spaceSize / threshold; // 计算需要的空间大小对应的区间编号
+        // 此处 +1 主要为了向上取整
         /*
             1、假需要存储的字节大小为5168，此时计算出来的区间号是25，但是25*204=5100显然是不满足条件的
             2、此时向上取整找到 26，而26*204=5304，是满足插入条件的
          */
-            if (number < INTERVALS_NO) number++; // 如果计算出的区间编号小于总的区间数，编号加一
-            while (number <= INTERVALS_NO) { // 从计算出的区间编号开始，向上寻找合适的 PageInfo
-                if (lists[number].size() == 0) { // 如果当前区间没有 PageInfo，继续查找下一个区间
-                    number++;
-                    continue;
-                }
-                return lists[number].remove(0); // 如果当前区间有 PageInfo，返回第一个 PageInfo，并从列表中移除
+        if (number < INTERVALS_NO) number++; // 如果计算出的区间编号小于总的区间数，编号加一
+        for (; number <= INTERVALS_NO; number ++) { // 从计算出的区间编号开始，向上寻找合适的 PageInfo
+            PageInfo pi = lists[number].poll();
+            if (pi != null) {
+                return pi;
+            }
+        }
+        return null; // 如果没有找到合适的 PageInfo，返回 null
+    }
+
+    /**
+     * 从索引中取出指定页面，页面正在被插入（已被 select 取走）时返回 null
+     */
+    public PageInfo remove(int pgno) {
+        PageInfo pi = removeFromStripes(pgno);
+        if(pi != null) return pi;
+        for (ConcurrentLinkedDeque<PageInfo> list : lists) {
+            pi = removeFromList(list, pgno);
+            if(pi != null) return pi;
+        }
+        return null;
+    }
+
+    /**
+     * 同 remove(pgno)，调用者已知页面放回时的空闲空间，只查找它所在的区间
+     */
+    public PageInfo remove(int pgno, int freeSpace) {
+        PageInfo pi = removeFromStripes(pgno);
+        if(pi != null) return pi;
+        return removeFromList(lists[Math.min(freeSpace / threshold, INTERVALS_NO)], pgno);
+    }
+
+    private PageInfo removeFromStripes(int pgno) {
+        for (int i = 0; i <= stripeMask; i ++) {
+            PageInfo pi = stripes.get(i);
+            if(pi != null && pi.pgno == pgno && stripes.compareAndSet(i, pi, null)) {
+                return pi;
             }
-            return null; // 如果没有找到合适的 PageInfo，返回 null
-        } finally {
-            lock.unlock(); // 释放锁
         }
+        return null;
+    }
+
+    private PageInfo removeFromList(ConcurrentLinkedDeque<PageInfo> list, int pgno) {
+        for (PageInfo pi : list) {
+            // 只有真正从队列中移除的线程拿到页面
+            if(pi.pgno == pgno && list.remove(pi)) {
+                return pi;
+            }
+        }
+        return null;
+    }
+
+    // 泛型数组不能直接创建，先创建通配符数组再转换
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedDeque<PageInfo>[] newLists(int n) {
+        return (ConcurrentLinkedDeque<PageInfo>[]) new ConcurrentLinkedDeque<?>[n];
+    }
+
+    int stripe() {
+        return (int)Thread.currentThread().getId() & stripeMask;
     }
 
 }
@@ -10,6 +10,7 @@ import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.im.Node.InsertAndSplitRes;
+import top.guoziyang.mydb.backend.im.Node.LeafDeleteRes;
 import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
 import top.guoziyang.mydb.backend.im.Node.SearchNextRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -23,12 +24,13 @@ import top.guoziyang.mydb.backend.utils.Parser;
 
 public class BPlusTree {
     DataManager dm;
+    int balance;        // 节点的平衡因子，由页大小决定
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceNumber(dm.getPageSize()));
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
     }
@@ -39,6 +41,7 @@ public class BPlusTree {
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
+        t.balance = Node.balanceNumber(dm.getPageSize());
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
         return t;
@@ -57,7 +60,7 @@ public class BPlusTree {
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
@@ -163,6 +166,23 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除键值对 (key, uid)，不存在时返回 false
+     * 只从叶子节点中删除，不合并节点，也不调整上层节点的键
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        // 分裂时相同的键可能留在左边的叶子中，从略小的键开始查找，再沿兄弟指针向右
+        long leafUid = searchLeaf(rootUid(), key == Long.MIN_VALUE ? key : key - 1);
+        while(true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafDeleteRes res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if(res.deleted) return true;
+            if(res.siblingUid == 0) return false;
+            leafUid = res.siblingUid;
+        }
+    }
+
     public void close() {
         bootDataItem.release();
     }
@@ -1,11 +1,11 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
@@ -25,8 +25,20 @@ public class Node {
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2; // 表示节点的兄弟节点的UID属性
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8; // 表示节点头部的大小的常量
 
-    static final int BALANCE_NUMBER = 32; // 节点的平衡因子的常量，一个节点最多可以包含32个key
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 节点的大小
+    static final int DEFAULT_BALANCE_NUMBER = 32; // 8KB 页面下节点的平衡因子，一个节点最多可以包含 2*32 个key
+
+    /**
+     * 节点的平衡因子随页大小等比例变化，节点始终约占页面的八分之一
+     * 页面越大，每个节点容纳的 key 越多，树越矮，范围扫描经过的叶子越少
+     */
+    static int balanceNumber(int pageSize) {
+        return DEFAULT_BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+    }
+
+    // 平衡因子为 balance 时节点的大小
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balance * 2 + 2);
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -62,7 +74,7 @@ public class Node {
      * 获取节点个数
      */
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.parseShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     /**
@@ -82,7 +94,7 @@ public class Node {
      * @return
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.parseLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     /**
@@ -105,7 +117,7 @@ public class Node {
      */
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     /**
@@ -121,7 +133,7 @@ public class Node {
      */
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8*2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     /**
@@ -135,9 +147,15 @@ public class Node {
         System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
+    // 删除第 kth 个键值对，其后的键值对向前移动一位
+    static void removeRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, (noKeys-kth-1)*(8*2));
+    }
+
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
+        int end = raw.end-1;
         for(int i = end; i >= begin; i --) {
             raw.raw[i] = raw.raw[i-(8*2)];
         }
@@ -147,9 +165,10 @@ public class Node {
      * 创建一个新的根节点的原始字节数组。
      * 这个新的根节点包含两个子节点，它们的键分别是`key`和`Long.MAX_VALUE`，UID分别是`left`和`right`。
      */
-    static byte[] newRootRaw(long left, long right, long key) {
+    static byte[] newRootRaw(long left, long right, long key, int balance) {
         // 创建一个新的字节数组，大小为节点的大小
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         // 设置节点为非叶子节点
         setRawIsLeaf(raw, false);
         // 设置节点的键的数量为2
@@ -171,9 +190,10 @@ public class Node {
     /**
      * 创建一个新的空根节点（叶子节点）的原始字节数组，这个新的根节点没有子节点和键。
      */
-    static byte[] newNilRootRaw() {
+    static byte[] newNilRootRaw(int balance) {
         // 创建一个新的字节数组，大小为节点的大小
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         // 设置节点为叶子节点
         setRawIsLeaf(raw, true);
         // 设置节点的键的数量为0
@@ -199,7 +219,17 @@ public class Node {
         dataItem.release();
     }
 
+    /*
+        isLeaf、searchNext 和 leafSearchRange 先不加锁乐观地读，读完后校验版本戳，
+        期间节点被修改时加读锁重读。多个线程同时自顶向下查找时，不必都去修改根节点和内部节点的锁。
+        乐观读可能读到修改到一半的键数，先限制在节点的容量以内，不会越界，结果由校验丢弃
+     */
     public boolean isLeaf() {
+        long stamp = dataItem.tryOptimisticRead();
+        boolean leaf = getRawIfLeaf(raw);
+        if (dataItem.validate(stamp)) {
+            return leaf;
+        }
         dataItem.rLock();
         try {
             return getRawIfLeaf(raw);
@@ -208,6 +238,11 @@ public class Node {
         }
     }
 
+    // 节点中最多能放下的 key 的个数
+    private int capacity() {
+        return (raw.end - raw.start - NODE_HEADER_SIZE) / (8*2);
+    }
+
     class SearchNextRes {
         long uid;   // 下一个节点的UID
         long siblingUid; // 下一个节点的兄弟节点的UID
@@ -217,39 +252,47 @@ public class Node {
      * 在B+树的节点中搜索下一个节点的方法，寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
      */
     public SearchNextRes searchNext(long key) {
+        long stamp = dataItem.tryOptimisticRead();
+        SearchNextRes res = searchNextRaw(key);
+        if (dataItem.validate(stamp)) {
+            return res;
+        }
         // 获取节点的读锁
         dataItem.rLock();
         try {
-            // 创建一个SearchNextRes对象，用于存储搜索结果
-            SearchNextRes res = new SearchNextRes();
-            // 获取节点个数
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                // 获取第i个key的值
-                long ik = getRawKthKey(raw, i);
-                // 如果key小于ik，那么找到了下一个节点
-                if (key < ik) {
-                    // 设置下一个节点的UID
-                    res.uid = getRawKthSon(raw, i);
-                    // 设置兄弟节点的UID为0
-                    res.siblingUid = 0;
-                    // 返回搜索结果
-                    return res;
-                }
-            }
-            // 如果没有找到下一个节点，设置uid为0
-            res.uid = 0;
-            // 设置兄弟节点的UID为当前节点的兄弟节点的UID
-            res.siblingUid = getRawSibling(raw);
-            // 返回搜索结果
-            return res;
-
+            return searchNextRaw(key);
         } finally {
             // 释放节点的读锁
             dataItem.rUnLock();
         }
     }
 
+    private SearchNextRes searchNextRaw(long key) {
+        // 创建一个SearchNextRes对象，用于存储搜索结果
+        SearchNextRes res = new SearchNextRes();
+        // 获取节点个数
+        int noKeys = Math.min(getRawNoKeys(raw), capacity());
+        for (int i = 0; i < noKeys; i++) {
+            // 获取第i个key的值
+            long ik = getRawKthKey(raw, i);
+            // 如果key小于ik，那么找到了下一个节点
+            if (key < ik) {
+                // 设置下一个节点的UID
+                res.uid = getRawKthSon(raw, i);
+                // 设置兄弟节点的UID为0
+                res.siblingUid = 0;
+                // 返回搜索结果
+                return res;
+            }
+        }
+        // 如果没有找到下一个节点，设置uid为0
+        res.uid = 0;
+        // 设置兄弟节点的UID为当前节点的兄弟节点的UID
+        res.siblingUid = getRawSibling(raw);
+        // 返回搜索结果
+        return res;
+    }
+
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
@@ -262,46 +305,93 @@ public class Node {
      则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。（兄弟节点中可能还存在着符合要求的数据）
      */
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+        long stamp = dataItem.tryOptimisticRead();
+        LeafSearchRangeRes res = leafSearchRangeRaw(leftKey, rightKey);
+        if (dataItem.validate(stamp)) {
+            return res;
+        }
         // 获取数据项的读锁
         dataItem.rLock();
         try {
-            // 获取节点中的键的数量
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            // 找到第一个大于或等于左键的键
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
+            return leafSearchRangeRaw(leftKey, rightKey);
+        } finally {
+            // 释放数据项的读锁
+            dataItem.rUnLock();
+        }
+    }
+
+    private LeafSearchRangeRes leafSearchRangeRaw(long leftKey, long rightKey) {
+        // 获取节点中的键的数量
+        int noKeys = Math.min(getRawNoKeys(raw), capacity());
+        int kth = 0;
+        // 找到第一个大于或等于左键的键
+        while (kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if (ik >= leftKey) {
+                break;
+            }
+            kth++;
+        }
+        // 创建一个列表，用于存储所有在键值范围内的子节点的UID
+        List<Long> uids = new ArrayList<>();
+        // 遍历所有的键，将所有小于或等于右键的键对应的子节点的UID添加到列表中
+        while (kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if (ik <= rightKey) {
+                uids.add(getRawKthSon(raw, kth));
                 kth++;
+            } else {
+                break;
             }
-            // 创建一个列表，用于存储所有在键值范围内的子节点的UID
-            List<Long> uids = new ArrayList<>();
-            // 遍历所有的键，将所有小于或等于右键的键对应的子节点的UID添加到列表中
-            while (kth < noKeys) {
+        }
+        // 如果所有的键都被遍历过，获取兄弟节点的UID
+        long siblingUid = 0;
+        if (kth == noKeys) {  // 说明遍历到了最后当前节点的最后一个key
+            siblingUid = getRawSibling(raw);
+        }
+        // 创建一个LeafSearchRangeRes对象，用于存储搜索结果
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.uids = uids;
+        res.siblingUid = siblingUid;
+        // 返回搜索结果
+        return res;
+    }
+
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;    // 没有找到且相同的键可能在兄弟节点中时，兄弟节点的UID
+    }
+
+    /**
+     * 在叶子节点中删除键值对 (key, uid)，节点不合并，键变少的节点之后的插入仍可使用
+     * 节点中所有的键都不大于 key 时，相同的键可能延续到兄弟节点，返回兄弟节点的 UID 继续查找
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            for (; kth < noKeys; kth ++) {
                 long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
-                    break;
+                if (ik > key) break;
+                if (ik == key && getRawKthSon(raw, kth) == uid) {
+                    removeRawKth(raw, kth, noKeys);
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.deleted = true;
+                    return res;
                 }
             }
-            // 如果所有的键都被遍历过，获取兄弟节点的UID
-            long siblingUid = 0;
-            if (kth == noKeys) {  // 说明遍历到了最后当前节点的最后一个key
-                siblingUid = getRawSibling(raw);
+            if (kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
             }
-            // 创建一个LeafSearchRangeRes对象，用于存储搜索结果
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            // 返回搜索结果
             return res;
         } finally {
-            // 释放数据项的读锁
-            dataItem.rUnLock();
+            if (res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
         }
     }
 
@@ -407,7 +497,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return tree.balance * 2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -416,24 +506,26 @@ public class Node {
 
     /**
      * 分裂B+树的节点。
-     * 当一个节点的键的数量达到 `BALANCE_NUMBER * 2` 时，就意味着这个节点已经满了，需要进行分裂操作。
+     * 当一个节点的键的数量达到 `balance * 2` 时，就意味着这个节点已经满了，需要进行分裂操作。
      * 分裂操作的目的是将一个满的节点分裂成两个节点，每个节点包含一半的键。
      */
     private SplitRes split() throws Exception {
         // 创建一个新的字节数组，用于存储新节点的原始数据
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = tree.balance;
+        int size = nodeSize(balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         // 设置新节点的叶子节点标志，与原节点相同
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        // 设置新节点的键的数量为BALANCE_NUMBER
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        // 设置新节点的键的数量为balance
+        setRawNoKeys(nodeRaw, balance);
         // 设置新节点的兄弟节点的UID，与原节点的兄弟节点的UID相同
         setRawSibling(nodeRaw, getRawSibling(raw));
         // 从原节点的原始字节数组中复制一部分数据到新节点的原始字节数组中
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
         // 在数据管理器中插入新节点的原始数据，并获取新节点的UID
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        // 更新原节点的键的数量为BALANCE_NUMBER
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        // 更新原节点的键的数量为balance
+        setRawNoKeys(raw, balance);
         // 更新原节点的兄弟节点的UID为新节点的UID
         setRawSibling(raw, son);
 
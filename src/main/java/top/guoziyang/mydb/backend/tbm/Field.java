@@ -5,6 +5,7 @@ import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.im.BPlusTree;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -141,6 +142,11 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    public boolean delete(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        return bt.delete(uKey, uid);
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
@@ -157,11 +163,11 @@ public class Field {
         return null;
     }
 
-    public long value2Uid(Object key) {
+    public long value2Uid(Object key) throws Exception {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = Parser.str2Uid(stringValue(key));
                 break;
             case "int32":
                 int uint = (int)key;
@@ -189,24 +195,54 @@ public class Field {
         return raw;
     }
 
+    /**
+     * 将字段值编码后写入记录，字符串超过 Overflow.inlineMax 时溢出存储，记录中只保存指针
+     * 溢出存储的值会写入一份新的块，不与其他版本共用
+     */
+    byte[] value2Raw(long xid, Object v) throws Exception {
+        if(!"string".equals(fieldType)) {
+            return value2Raw(v);
+        }
+        DataManager dm = ((TableManagerImpl) tb.tbm).dm;
+        byte[] data = v instanceof Overflow ? ((Overflow)v).readBytes() : ((String)v).getBytes();
+        if(data.length > Overflow.inlineMax(dm.getPageSize())) {
+            byte[] ptr = Overflow.store(dm, xid, data);
+            // 块记在事务名下，事务回滚时释放
+            ((TableManagerImpl) tb.tbm).vacuum.stored(xid, Overflow.parse(dm, ptr, 0));
+            return ptr;
+        }
+        return value2Raw(new String(data));
+    }
+
+    // 字符串字段的值，溢出存储的值在这里才读出
+    private static String stringValue(Object v) throws Exception {
+        return v instanceof Overflow ? ((Overflow)v).read() : (String)v;
+    }
+
     class ParseValueRes {
         Object v;
         int shift;
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
+    // 从 raw 的 pos 处解析字段值，raw 可以是页面缓冲区，定长字段不拷贝
+    public ParseValueRes parserValue(byte[] raw, int pos) {
         ParseValueRes res = new ParseValueRes();
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
+                res.v = Parser.parseInt(raw, pos);
                 res.shift = 4;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Parser.parseLong(raw, pos);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
+                if(Overflow.isPointer(raw, pos)) {
+                    res.v = Overflow.parse(((TableManagerImpl) tb.tbm).dm, raw, pos);
+                    res.shift = Overflow.POINTER_SIZE;
+                    break;
+                }
+                ParseStringRes r = Parser.parseString(raw, pos);
                 res.v = r.str;
                 res.shift = r.next;
                 break;
@@ -214,7 +250,7 @@ public class Field {
         return res;
     }
 
-    public String printValue(Object v) {
+    public String printValue(Object v) throws Exception {
         String str = null;
         switch(fieldType) {
             case "int32":
@@ -224,7 +260,7 @@ public class Field {
                 str = String.valueOf((long)v);
                 break;
             case "string":
-                str = (String)v;
+                str = stringValue(v);
                 break;
         }
         return str;
@@ -0,0 +1,171 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.page.PageX;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 溢出存储的大字段
+ * 编码后超过 inlineMax 字节的字符串不放在记录中，而是切成块，每块是一个单独的数据项，块之间串成链表：
+ * [NextChunkUid][Data]
+ * NextChunkUid 为 0 表示最后一块。记录中该字段保存指针：
+ * [Mark][Length][FirstChunkUid]
+ * Mark 为 -1，与普通字符串的 [Length][Data] 区分
+ *
+ * 解析记录时只解析指针，不读取块，用到字段的值时才按顺序逐块读出。
+ * 块与记录的版本同生同灭：更新记录时新版本写入一份新的块，旧版本被清理时一并释放它的块，写入它的事务回滚时也释放。
+ * 读已提交的事务读出记录后、读取块之前，删除这个版本的事务可能已提交且被清理，这时读取块抛出 NullEntryException。
+ */
+class Overflow {
+
+    static final int MARK = -1;
+    static final int POINTER_SIZE = 16;
+
+    private static final int OF_NEXT = 0;
+    private static final int OF_DATA = 8;
+    private static final int ITEM_HEADER = 3;   // 数据项的 [ValidFlag][DataSize]
+
+    private DataManager dm;
+    private int length;
+    private long first;
+
+    private Overflow(DataManager dm, int length, long first) {
+        this.dm = dm;
+        this.length = length;
+        this.first = first;
+    }
+
+    // 记录中能直接存放的字符串最大字节数
+    static int inlineMax(int pageSize) {
+        return pageSize / 8;
+    }
+
+    // 每块的数据大小，一块占半个页面，一页能放下两块：第二块还要占一个槽，
+    // 且页面索引只选择空闲空间严格大于需要的页面，所以再少一个字节
+    static int chunkSize(int pageSize) {
+        return (PageX.maxFreeSpace(pageSize) - PageX.SLOT_SIZE - 1) / 2 - ITEM_HEADER - OF_DATA;
+    }
+
+    /**
+     * 把 data 切块写入，从最后一块写起，写每一块时已经知道下一块的 UID，并尽量和下一块放在同一页面
+     * @return 记录中保存的指针
+     */
+    static byte[] store(DataManager dm, long xid, byte[] data) throws Exception {
+        int size = chunkSize(dm.getPageSize());
+        long next = 0;
+        for (int end = data.length; end > 0; ) {
+            int start = (end - 1) / size * size;
+            next = dm.insert(xid, Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, start, end)), next);
+            end = start;
+        }
+        return Bytes.concat(Parser.int2Byte(MARK), Parser.int2Byte(data.length), Parser.long2Byte(next));
+    }
+
+    // raw 的 pos 处是否是指针
+    static boolean isPointer(byte[] raw, int pos) {
+        return Parser.parseInt(raw, pos) == MARK;
+    }
+
+    static Overflow parse(DataManager dm, byte[] raw, int pos) {
+        int length = Parser.parseInt(raw, pos + 4);
+        long first = Parser.parseLong(raw, pos + 8);
+        return new Overflow(dm, length, first);
+    }
+
+    int length() {
+        return length;
+    }
+
+    long firstChunk() {
+        return first;
+    }
+
+    /**
+     * 逐块读出数据，读完一块才读下一块
+     */
+    InputStream stream() {
+        return new InputStream() {
+            private long next = first;
+            private byte[] chunk = new byte[OF_DATA];
+            private int pos = OF_DATA;
+
+            @Override
+            public int read() throws IOException {
+                if(!fill()) return -1;
+                return chunk[pos ++] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0) return 0;
+                if(!fill()) return -1;
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(chunk, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            private boolean fill() throws IOException {
+                while(pos == chunk.length) {
+                    if(next == 0) return false;
+                    try {
+                        chunk = readChunk(next);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                    next = Parser.parseLong(Arrays.copyOfRange(chunk, OF_NEXT, OF_DATA));
+                    pos = OF_DATA;
+                }
+                return true;
+            }
+        };
+    }
+
+    byte[] readBytes() throws Exception {
+        try (InputStream in = stream()) {
+            return in.readNBytes(length);
+        }
+    }
+
+    String read() throws Exception {
+        return new String(readBytes());
+    }
+
+    // 释放所有块，调用者需保证不会再有人读取这个值
+    void free() throws Exception {
+        long uid = first;
+        while(uid != 0) {
+            long next = Parser.parseLong(Arrays.copyOfRange(readChunk(uid), OF_NEXT, OF_DATA));
+            dm.free(TransactionManagerImpl.SUPER_XID, uid);
+            uid = next;
+        }
+    }
+
+    private byte[] readChunk(long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            // 块随记录的版本一起被释放了
+            throw Error.NullEntryException;
+        }
+        di.rLock();
+        try {
+            SubArray sa = di.data();
+            return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        } finally {
+            di.rUnLock();
+            di.release();
+        }
+    }
+}
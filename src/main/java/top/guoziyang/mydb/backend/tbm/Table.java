@@ -8,6 +8,7 @@ import java.util.Map;
 
 import com.google.common.primitives.Bytes;
 
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.parser.statement.Create;
 import top.guoziyang.mydb.backend.parser.statement.Delete;
 import top.guoziyang.mydb.backend.parser.statement.Insert;
@@ -154,6 +155,7 @@ public class Table {
         int count = 0;
         for (Long uid : uids) {
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                ((TableManagerImpl)tbm).vacuum.deleted(xid, this, uid);
                 count ++;
             }
         }
@@ -175,14 +177,34 @@ public class Table {
         Object value = fd.string2Value(update.value);
         int count = 0;
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
+            Map<String, Object> entry = ((TableManagerImpl)tbm).vm.read(xid, uid, view -> parseEntry(view));
+            if(entry == null) continue;
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
-            Map<String, Object> entry = parseEntry(raw);
+            // 索引键不变时新版本接在旧版本的版本链上，索引项继续指向链头，不必插入新的索引项
+            boolean sameKeys = !fd.isIndexed() || fd.value2Uid(entry.get(fd.fieldName)) == fd.value2Uid(value);
             entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
+            byte[] raw;
+            try {
+                raw = entry2Raw(xid, entry);
+            } catch (Exception e) {
+                // 拷贝溢出的值时旧版本已被删除并清理，记录已不存在
+                if(e != Error.NullEntryException) throw e;
+                continue;
+            }
+            if(sameKeys) {
+                if(((TableManagerImpl)tbm).vm.update(xid, uid, raw) != 0) {
+                    ((TableManagerImpl)tbm).vacuum.deleted(xid, this, uid);
+                    count ++;
+                } else {
+                    // 记录已被删除，为新版本写入的块用不上了
+                    ((TableManagerImpl)tbm).vacuum.discard(xid, overflows(raw));
+                }
+                continue;
+            }
+
+            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                ((TableManagerImpl)tbm).vacuum.deleted(xid, this, uid);
+            }
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
             
             count ++;
@@ -197,20 +219,50 @@ public class Table {
     }
 
     public String read(long xid, Select read) throws Exception {
+        List<Field> projection = parseProjection(read.fields);
         List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        // 一次发出所有记录的读取，不必逐条等待 I/O，记录直接在页面中解码
+        for (Map<String, Object> entry : ((TableManagerImpl)tbm).vm.read(xid, uids, view -> parseEntry(view))) {
+            if(entry == null) continue;
+            // 只输出选择的字段，没有选择的溢出字段不会被读出
+            String line;
+            try {
+                line = printEntry(projection, entry);
+            } catch (Exception e) {
+                // 读已提交时，删除这个版本的事务可能在读出记录后提交，版本连同溢出的块已被清理，记录已不存在
+                if(e != Error.NullEntryException) throw e;
+                continue;
+            }
+            sb.append(line).append("\n");
         }
         return sb.toString();
     }
 
+    private List<Field> parseProjection(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> projection = new ArrayList<>();
+        for (String name : names) {
+            Field fd = null;
+            for (Field f : fields) {
+                if(f.fieldName.equals(name)) {
+                    fd = f;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            projection.add(fd);
+        }
+        return projection;
+    }
+
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
+        byte[] raw = entry2Raw(xid, entry);
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
         for (Field field : fields) {
             if(field.isIndexed()) {
@@ -219,6 +271,34 @@ public class Table {
         }
     }
 
+    // 从各个索引中删除指向版本链链头 uid 的项，raw 是链中一个版本的数据
+    void removeIndex(long uid, byte[] raw) throws Exception {
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.delete(entry.get(field.fieldName), uid);
+            }
+        }
+    }
+
+    // 释放版本 raw 中溢出存储的字段
+    void freeOverflow(byte[] raw) throws Exception {
+        for (Overflow of : overflows(raw)) {
+            of.free();
+        }
+    }
+
+    // 版本 raw 中溢出存储的字段
+    private List<Overflow> overflows(byte[] raw) {
+        List<Overflow> res = new ArrayList<>();
+        for (Object v : parseEntry(raw).values()) {
+            if(v instanceof Overflow) {
+                res.add((Overflow)v);
+            }
+        }
+        return res;
+    }
+
     private Map<String, Object> string2Entry(String[] values) throws Exception {
         if(values.length != fields.size()) {
             throw Error.InvalidValuesException;
@@ -327,7 +407,7 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
+    private String printEntry(List<Field> fields, Map<String, Object> entry) throws Exception {
         StringBuilder sb = new StringBuilder("[");
         for (int i = 0; i < fields.size(); i++) {
             Field field = fields.get(i);
@@ -342,20 +422,25 @@ public class Table {
     }
 
     private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
+        return parseEntry(new SubArray(raw, 0, raw.length));
+    }
+
+    // 依次从 view 中解析各个字段，不拷贝记录，view 可以直接指向页面
+    private Map<String, Object> parseEntry(SubArray view) {
+        int pos = view.start;
         Map<String, Object> entry = new HashMap<>();
         for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
+            ParseValueRes r = field.parserValue(view.raw, pos);
             entry.put(field.fieldName, r.v);
             pos += r.shift;
         }
         return entry;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = new byte[0];
         for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+            raw = Bytes.concat(raw, field.value2Raw(xid, entry.get(field.fieldName)));
         }
         return raw;
     }
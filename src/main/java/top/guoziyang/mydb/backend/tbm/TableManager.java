@@ -14,6 +14,8 @@ public interface TableManager {
     BeginRes begin(Begin begin);
     byte[] commit(long xid) throws Exception;
     byte[] abort(long xid);
+    int vacuum() throws Exception;     // 清理一批已不会被任何事务读到的旧版本，返回清理的版本数；后台也会定期执行
+    void close();                      // 停止后台清理，需在关闭 DataManager 之前调用
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
@@ -25,6 +25,7 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache; // 表缓存，用于缓存已加载的表，键是表名，值是表对象
     private Map<Long, List<Table>> xidTableCache; // 事务表缓存，用于缓存每个事务修改过的表，键是事务ID，值是表对象列表
     private Lock lock; // 锁，用于同步多线程操作
+    Vacuum vacuum; // 清理已删除的旧版本
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -34,6 +35,7 @@ public class TableManagerImpl implements TableManager {
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        vacuum = new Vacuum(vm);
     }
 
     /**
@@ -78,14 +80,24 @@ public class TableManagerImpl implements TableManager {
     @Override
     public byte[] commit(long xid) throws Exception {
         vm.commit(xid);
+        vacuum.committed(xid);
         return "commit".getBytes();
     }
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        vacuum.aborted(xid);
         return "abort".getBytes();
     }
     @Override
+    public int vacuum() throws Exception {
+        return vacuum.vacuum();
+    }
+    @Override
+    public void close() {
+        vacuum.close();
+    }
+    @Override
     public byte[] show(long xid) {
         lock.lock();
         try {
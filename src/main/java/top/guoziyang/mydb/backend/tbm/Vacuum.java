@@ -0,0 +1,215 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
+import top.guoziyang.mydb.backend.vm.PruneRes;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 清理被删除的旧版本
+ *
+ * Table.delete 和 Table.update 删除的版本在删除者提交后进入待清理队列，删除者回滚时丢弃。
+ * 队列中记录的是索引指向的版本链链头。后台线程定期取出 xmax 小于 VersionManager 清理边界的项，
+ * 由 VersionManager 释放链中已不会被任何事务读到的版本；整条链都被释放时，先从表的各个索引中删除指向链头的项，
+ * 查询不再找到它。被释放版本溢出存储的块一并释放，空间由 DataManager 的后台任务整理回收。
+ * 每轮最多检查 BATCH 个版本，轮与轮之间间隔 INTERVAL_MS，不与前台事务争抢资源。
+ *
+ * 待清理队列只保存在内存中，数据库重启前没有清理的版本会一直保留。
+ * 事务为新版本溢出存储的块也按事务记录，事务回滚时立即释放：回滚的版本不会被任何事务读到，也不会进入待清理队列。
+ * 后台一轮清理出错时只打印异常，出错的那一项不再重试，下一轮照常进行；close 停止后台任务。
+ */
+class Vacuum {
+
+    private static final int BATCH = 256;
+    private static final long INTERVAL_MS = 1000;
+
+    static class DeadVersion {
+        Table table;
+        long uid;       // 版本链的链头
+        long xmax;
+    }
+
+    private VersionManager vm;
+    private LongObjectMap<List<DeadVersion>> deleting;    // 各事务删除的版本，事务结束前不能清理
+    private LongObjectMap<List<Overflow>> storing;         // 各事务写入的溢出块，事务回滚时释放
+    private Lock lock;
+    private Queue<DeadVersion> pending;                    // 删除已提交、等待清理的版本
+    private Lock vacuumLock;                               // 后台任务和手动调用的清理互斥
+    private ScheduledThreadPoolExecutor executor;
+
+    Vacuum(VersionManager vm) {
+        this.vm = vm;
+        this.deleting = new LongObjectMap<>();
+        this.storing = new LongObjectMap<>();
+        this.lock = new ReentrantLock();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.vacuumLock = new ReentrantLock();
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "vacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::runOnce, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // 事务 xid 删除了表 table 中的版本 uid
+    void deleted(long xid, Table table, long uid) {
+        DeadVersion dv = new DeadVersion();
+        dv.table = table;
+        dv.uid = uid;
+        dv.xmax = xid;
+        lock.lock();
+        try {
+            List<DeadVersion> l = deleting.get(xid);
+            if(l == null) {
+                l = new ArrayList<>();
+                deleting.put(xid, l);
+            }
+            l.add(dv);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 事务 xid 为新版本写入了溢出存储的块
+    void stored(long xid, Overflow of) {
+        lock.lock();
+        try {
+            List<Overflow> l = storing.get(xid);
+            if(l == null) {
+                l = new ArrayList<>();
+                storing.put(xid, l);
+            }
+            l.add(of);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 事务 xid 写入的块没有用到，立即释放
+    void discard(long xid, List<Overflow> ofs) throws Exception {
+        lock.lock();
+        try {
+            List<Overflow> l = storing.get(xid);
+            if(l != null) {
+                for (Overflow of : ofs) {
+                    l.removeIf(o -> o.firstChunk() == of.firstChunk());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Overflow of : ofs) {
+            of.free();
+        }
+    }
+
+    void committed(long xid) {
+        List<DeadVersion> l = remove(xid);
+        if(l != null) {
+            pending.addAll(l);
+        }
+        removeStored(xid);
+    }
+
+    // 回滚后 xmax 不再生效，版本仍然有效；回滚的版本的块不会再被读取
+    void aborted(long xid) {
+        remove(xid);
+        List<Overflow> l = removeStored(xid);
+        if(l == null) return;
+        try {
+            for (Overflow of : l) {
+                of.free();
+            }
+        } catch (Exception e) {
+            // 和后台清理一样，释放失败只是少回收一些空间
+            e.printStackTrace();
+        }
+    }
+
+    private List<DeadVersion> remove(long xid) {
+        lock.lock();
+        try {
+            return deleting.remove(xid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Overflow> removeStored(long xid) {
+        lock.lock();
+        try {
+            return storing.remove(xid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 执行一轮清理：检查待清理队列头部最多 BATCH 个版本，清理已越过清理边界的，其余放回队尾
+     * @return 释放的版本数
+     */
+    int vacuum() throws Exception {
+        if(pending.isEmpty()) return 0;
+        vacuumLock.lock();
+        try {
+            long horizon = vm.getHorizon();
+            List<DeadVersion> notYet = new ArrayList<>();
+            int cleaned = 0;
+            try {
+                for (int i = 0; i < BATCH; i ++) {
+                    DeadVersion dv = pending.poll();
+                    if(dv == null) break;
+                    if(dv.xmax >= horizon) {
+                        notYet.add(dv);
+                        continue;
+                    }
+                    PruneRes res = vm.prune(dv.uid, horizon);
+                    if(res.chainFreed) {
+                        // 链中各版本的索引键相同，索引项指向链头
+                        dv.table.removeIndex(dv.uid, res.freed.get(0));
+                    }
+                    for (byte[] raw : res.freed) {
+                        dv.table.freeOverflow(raw);
+                    }
+                    if(res.retry) {
+                        notYet.add(dv);
+                    }
+                    cleaned += res.freed.size();
+                }
+            } finally {
+                pending.addAll(notYet);
+            }
+            return cleaned;
+        } finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    // 停止后台清理，等待正在进行的一轮结束
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runOnce() {
+        try {
+            vacuum();
+        } catch (Exception e) {
+            // 清理只是回收空间，失败不影响数据的正确性，不必让整个进程退出
+            e.printStackTrace();
+        }
+    }
+}
@@ -30,6 +30,19 @@ public class Parser {
         return buffer.getLong();
     }
 
+    // 直接从 buf 的 off 处解析，不拷贝
+    public static short parseShort(byte[] buf, int off) {
+        return (short)((buf[off] & 0xFF) << 8 | (buf[off+1] & 0xFF));
+    }
+
+    public static int parseInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF) << 24 | (buf[off+1] & 0xFF) << 16 | (buf[off+2] & 0xFF) << 8 | (buf[off+3] & 0xFF);
+    }
+
+    public static long parseLong(byte[] buf, int off) {
+        return (long)parseInt(buf, off) << 32 | (parseInt(buf, off+4) & 0xFFFFFFFFL);
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -40,6 +53,11 @@ public class Parser {
         return new ParseStringRes(str, length+4);
     }
 
+    public static ParseStringRes parseString(byte[] raw, int off) {
+        int length = parseInt(raw, off);
+        return new ParseStringRes(new String(raw, off+4, length), length+4);
+    }
+
     public static byte[] string2Byte(String str) {
         byte[] l = int2Byte(str.length());
         return Bytes.concat(l, str.getBytes());
@@ -1,9 +1,25 @@
 package top.guoziyang.mydb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    public static long addressToUid(int pgno, short slot) {
+        return addressToUid(pgno, 0, slot);
+    }
+
+    // UID 结构：[Pgno 32位] [Generation 16位] [Slot 16位]
+    public static long addressToUid(int pgno, int generation, short slot) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
-        return u0 << 32 | u1;
+        long u1 = (long)(generation & 0xFFFF);
+        long u2 = (long)(slot & 0xFFFF);        // 页内槽号按无符号数解释
+        return u0 << 32 | u1 << 16 | u2;
+    }
+
+    // 从 UID 中取出页内槽号
+    public static short uidToSlot(long uid) {
+        return (short)(uid & 0xFFFF);
+    }
+
+    // 从 UID 中取出页面代数
+    public static int uidToGeneration(long uid) {
+        return (int)((uid >>> 16) & 0xFFFF);
     }
 }
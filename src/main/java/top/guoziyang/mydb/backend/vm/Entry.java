@@ -1,17 +1,20 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.common.primitives.Bytes;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [NEXT] [data]
+ * NEXT 是版本链中下一个版本的 UID，0 表示没有。索引键不变的更新把新版本接在旧版本之后，
+ * 索引只指向链头，读取时沿着 NEXT 找到可见的版本
  */
 public class Entry {
 
@@ -19,8 +22,10 @@ public class Entry {
     private static final int OF_XMIN = 0;
     // 定义了XMAX的偏移量为XMIN偏移量后的8个字节
     private static final int OF_XMAX = OF_XMIN+8;
-    // 定义了DATA的偏移量为XMAX偏移量后的8个字节
-    private static final int OF_DATA = OF_XMAX+8;
+    // 定义了NEXT的偏移量为XMAX偏移量后的8个字节
+    private static final int OF_NEXT = OF_XMAX+8;
+    // 定义了DATA的偏移量为NEXT偏移量后的8个字节
+    private static final int OF_DATA = OF_NEXT+8;
 
     // uid字段，用来唯一标识一个Entry的
     private long uid;
@@ -28,6 +33,8 @@ public class Entry {
     private DataItem dataItem;
     // VersionManager实例对象，用来管理版本的
     private VersionManager vm;
+    // dataItem 的数据部分在页面中的位置，Entry 存在期间不变
+    private SubArray raw;
 
     public static Entry newEntry(VersionManager vm, DataItem dataItem, long uid) {
         if (dataItem == null) {
@@ -37,6 +44,7 @@ public class Entry {
         entry.uid = uid;
         entry.dataItem = dataItem;
         entry.vm = vm;
+        entry.raw = dataItem.data();
         return entry;
     }
 
@@ -46,6 +54,11 @@ public class Entry {
         return newEntry(vm, di, uid);
     }
 
+    // 异步加载一个Entry，数据项无效时结果为 null
+    public static CompletableFuture<Entry> loadEntryAsync(VersionManager vm, long uid) {
+        return ((VersionManagerImpl)vm).dm.readAsync(uid).thenApply(di -> newEntry(vm, di, uid));
+    }
+
     /**
      * 生成日志格式数据
      */
@@ -54,8 +67,10 @@ public class Entry {
         byte[] xmin = Parser.long2Byte(xid);
         // 创建一个空的8字节数组，等待版本修改或删除时候给定事务xid (TBM)
         byte[] xmax = new byte[8];
+        // 新版本没有后继版本
+        byte[] next = new byte[8];
         // 拼接成日志格式
-        return Bytes.concat(xmin, xmax, data);
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     public void release() {
@@ -68,14 +83,14 @@ public class Entry {
     }
 
     // 以拷贝的形式返回内容
-    // 获取记录中持有的数据，也就需要按照上面这个结构(xmin, xmax, data)来解析
+    // 获取记录中持有的数据，也就需要按照上面这个结构(xmin, xmax, next, data)来解析
     public byte[] data() {
         // 加锁，确保数据安全
         dataItem.rLock();
         try {
             // 获取日志数据
             SubArray sa = dataItem.data();
-            // 创建一个去除前16字节的数组，因为前16字节表示 xmin and xmax
+            // 创建一个去除前24字节的数组，因为前24字节表示 xmin、xmax 和 next
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
             // 拷贝数据到data数组上
             System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
@@ -86,31 +101,53 @@ public class Entry {
         }
     }
 
-    public long getXmin() {
+    /**
+     * 不拷贝，直接在页面缓冲区上解码数据，解码期间持有读锁
+     * 传给 decoder 的视图只包含数据部分
+     */
+    public <T> T decode(EntryDecoder<T> decoder) {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return decoder.decode(new SubArray(sa.raw, sa.start+OF_DATA, sa.end));
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    public long getXmin() {
+        return readLong(OF_XMIN);
+    }
+
     public long getXmax() {
+        return readLong(OF_XMAX);
+    }
+
+    public long getNext() {
+        return readLong(OF_NEXT);
+    }
+
+    // 乐观地读取头部的一个字段，读的过程中有修改时加读锁重读
+    private long readLong(int offset) {
+        long stamp = dataItem.tryOptimisticRead();
+        long value = Parser.parseLong(raw.raw, raw.start+offset);
+        if(dataItem.validate(stamp)) {
+            return value;
+        }
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(raw.raw, raw.start+offset);
         } finally {
             dataItem.rUnLock();
         }
     }
 
     /**
-     * 设置删除版本的事务编号
+     * 设置删除版本的事务编号和后继版本，删除时 next 为 0，更新时为新版本的 UID
+     * 两者在同一条修改日志中，崩溃恢复回滚时一起撤销；运行中回滚时由 VersionManagerImpl 把两者清零
      * @param xid
      */
-    public void setXmax(long xid) {
+    public void setXmax(long xid, long next) {
         // 在修改或删除之前先拷贝好旧数值 仅数据 raw->oldRaw
         dataItem.before();
         try {
@@ -118,12 +155,25 @@ public class Entry {
             SubArray sa = dataItem.data();
             // 将事务编号拷贝到 8~15 处字节
             System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            // 将后继版本拷贝到 16~23 处字节
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
         } finally {
             // 生成一个修改日志
             dataItem.after(xid);
         }
     }
 
+    // 清理时跳过已释放的后继版本，修改日志记在超级事务下
+    void setNext(long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
@@ -0,0 +1,11 @@
+package top.guoziyang.mydb.backend.vm;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+
+/**
+ * 在版本被持有期间解码它的数据
+ * view 直接指向页面缓冲区中版本的数据部分，只读，且只在 decode 执行期间有效，不能保存下来
+ */
+public interface EntryDecoder<T> {
+    T decode(SubArray view);
+}
@@ -1,39 +1,40 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.primitive.LongIntMap;
+import top.guoziyang.mydb.backend.common.primitive.LongList;
+import top.guoziyang.mydb.backend.common.primitive.LongLongMap;
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 维护了一个依赖等待图，以进行死锁检测
+ * 所有映射都以 long 为键，使用开放寻址的原始类型映射，避免装箱和节点分配
  */
 public class LockTable {
 
     // 某个XID已经获得的资源的UID列表，键是事务ID，值是该事物持有的资源ID列表。
-    private Map<Long, List<Long>> x2u;
+    private LongObjectMap<LongList> x2u;
     // UID被某个XID持有,键是资源ID，值是持有该资源的事务ID。
-    private Map<Long, Long> u2x;
+    private LongLongMap u2x;
     // 正在等待UID的XID列表，键是资源ID，值是正在等待该资源的事务ID。
-    private Map<Long, List<Long>> wait;
+    private LongObjectMap<LongList> wait;
     // 正在等待资源的XID的锁,键是事务ID，值是该事务的锁对象。
-    private Map<Long, Lock> waitLock;
+    private LongObjectMap<Lock> waitLock;
     // XID正在等待的UID,键是事务ID，值是该事务正在等待的资源ID。
-    private Map<Long, Long> waitU;
+    private LongLongMap waitU;
     // 一个全局锁，用于同步。
     private Lock lock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongObjectMap<>();
+        u2x = new LongLongMap();
+        wait = new LongObjectMap<>();
+        waitLock = new LongObjectMap<>();
+        waitU = new LongLongMap();
+        xidStamp = new LongIntMap();
         lock = new ReentrantLock();
     }
 
@@ -75,10 +76,10 @@ public class LockTable {
     public void remove(long xid) {
         lock.lock(); // 获取全局锁
         try {
-            List<Long> l = x2u.get(xid); // 从x2u映射中获取当前事务ID已经获得的资源的UID列表
+            LongList l = x2u.get(xid); // 从x2u映射中获取当前事务ID已经获得的资源的UID列表
             if (l != null) {
                 while (l.size() > 0) {     // 获得的资源的UID列表不为空
-                    Long uid = l.remove(0); // 获取并移除列表中的第一个资源ID
+                    long uid = l.removeLast(); // 获取并移除最近获得的资源ID
                     selectNewXID(uid); // 从等待队列中选择一个新的事务ID来占用这个资源
                 }
             }
@@ -94,12 +95,12 @@ public class LockTable {
     // 从等待队列中选择一个xid来占用uid
     private void selectNewXID(long uid) {
         u2x.remove(uid); // 从u2x映射中移除当前资源ID
-        List<Long> l = wait.get(uid); // 从wait映射中获取当前资源ID的等待队列
+        LongList l = wait.get(uid); // 从wait映射中获取当前资源ID的等待队列
         if (l == null) return; // 如果等待队列为空，立即返回
         assert l.size() > 0; // 断言等待队列不为空
         // 遍历等待队列
         while (l.size() > 0) {
-            long xid = l.remove(0); // 获取并移除队列l中的第一个事务等待的ID
+            long xid = l.removeLast(); // 获取并移除队列l中最近加入的事务ID
             // 检查事务ID是否在waitLock映射中
             if (!waitLock.containsKey(xid)) {
                 continue; // 如果不在，跳过这个事务ID，继续下一个
@@ -115,15 +116,15 @@ public class LockTable {
         if (l.size() == 0) wait.remove(uid);
     }
 
-    private Map<Long, Integer> xidStamp;
+    private LongIntMap xidStamp;     // 每次检测时清空复用，0 表示未访问
     private int stamp;
 
     private boolean hasDeadLock() {
-        xidStamp = new HashMap<>(); // 创建一个新的xidStamp哈希映射
+        xidStamp.clear(); // 清空xidStamp映射
         stamp = 1; // 将stamp设置为1
-        for (long xid : x2u.keySet()) { // 遍历所有已经获得资源的事务ID
-            Integer s = xidStamp.get(xid); // 获取xidStamp中对应事务ID的记录
-            if (s != null && s > 0) { // 如果记录存在，并且值大于0
+        for (long xid : x2u.keys()) { // 遍历所有已经获得资源的事务ID
+            int s = xidStamp.getOrDefault(xid, 0); // 获取xidStamp中对应事务ID的记录
+            if (s > 0) { // 如果记录存在，并且值大于0
                 continue; // 跳过这个事务ID，继续下一个
             }
             stamp++; // 将stamp加1
@@ -136,56 +137,45 @@ public class LockTable {
 
     private boolean dfs(long xid) {
         // 终止条件
-        Integer stp = xidStamp.get(xid); // 从xidStamp映射中获取当前事务ID的时间戳
-        if (stp != null && stp == stamp) { // 如果时间戳存在并且等于全局时间戳
+        int stp = xidStamp.getOrDefault(xid, 0); // 从xidStamp映射中获取当前事务ID的时间戳
+        if (stp == stamp) { // 如果时间戳存在并且等于全局时间戳
             return true; // 存在死锁，返回true
         }
-        if (stp != null && stp < stamp) { // 如果时间戳存在并且小于全局时间戳
+        if (stp > 0 && stp < stamp) { // 如果时间戳存在并且小于全局时间戳
             return false; // 这个事务ID已经被检查过，并且没有发现死锁，返回false
         }
         xidStamp.put(xid, stamp); // 将当前事务ID和全局时间戳添加到xidStamp映射中
         // 循环逻辑
-        Long uid = waitU.get(xid); // 从waitU映射中获取当前事务ID正在等待的资源ID
-        if (uid == null) return false; // 如果资源ID不存在，表示当前事务ID不在等待任何资源，返回false
-        Long x = u2x.get(uid); // 从u2x映射中获取当前资源ID被哪个事务ID持有
-        assert x != null; // 断言这个事务ID存在
+        if (!waitU.containsKey(xid)) return false; // 如果当前事务ID不在等待任何资源，返回false
+        long uid = waitU.getOrDefault(xid, 0); // 从waitU映射中获取当前事务ID正在等待的资源ID
+        assert u2x.containsKey(uid); // 断言持有这个资源的事务ID存在
+        long x = u2x.getOrDefault(uid, 0); // 从u2x映射中获取当前资源ID被哪个事务ID持有
         return dfs(x); // 递归调用dfs方法检查这个事务ID
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private void removeFromList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
         if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
-            }
-        }
+        l.removeValue(uid1);
         if(l.size() == 0) {
             listMap.remove(uid0);
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    // 新元素放在列表末尾，取出时从末尾取
+    private void putIntoList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
+        if(l == null) {
+            l = new LongList();
+            listMap.put(uid0, l);
         }
-        listMap.get(uid0).add(0, uid1);
+        l.add(uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private boolean isInList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
         if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
-            }
-        }
-        return false;
+        return l.contains(uid1);
     }
 
 }
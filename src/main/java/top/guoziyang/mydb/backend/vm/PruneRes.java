@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.vm;
+
+import java.util.List;
+
+public class PruneRes {
+    public List<byte[]> freed;      // 被释放的版本的数据
+    public boolean chainFreed;      // 整条版本链都已释放，freed 的第一项是链头
+    public boolean retry;           // 链尾已删除，但链中还有版本可能被读到，之后需要再次清理
+}
@@ -1,8 +1,8 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
-
+import top.guoziyang.mydb.backend.common.primitive.LongLongMap;
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
+import top.guoziyang.mydb.backend.common.primitive.LongSet;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 
 // vm对一个事务的抽象
@@ -12,14 +12,16 @@ public class Transaction {
     // 事务的隔离级别
     public int level;
     // 事务的快照，用于存储活跃事务的ID
-    public Map<Long, Boolean> snapshot;
+    public LongSet snapshot;
     // 事务执行过程中的错误
     public Exception err;
     // 标志事务是否自动中止
     public boolean autoAborted;
+    // 事务更新过的版本到它的新版本，回滚时据此摘除并释放新版本
+    public LongLongMap updated = new LongLongMap();
 
     // 创建一个新的事务
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, LongObjectMap<Transaction> active) {
         Transaction t = new Transaction();
         // 设置事务ID
         t.xid = xid;
@@ -27,11 +29,8 @@ public class Transaction {
         t.level = level;
         // 如果隔离级别不为0，创建快照
         if (level != 0) {
-            t.snapshot = new HashMap<>();
             // 将活跃事务的ID添加到快照中
-            for (Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = LongSet.of(active.keys());
         }
         // 返回新创建的事务
         return t;
@@ -44,6 +43,6 @@ public class Transaction {
             return false;
         }
         // 否则，检查事务ID是否在快照中
-        return snapshot.containsKey(xid);
+        return snapshot.contains(xid);
     }
 }
\ No newline at end of file
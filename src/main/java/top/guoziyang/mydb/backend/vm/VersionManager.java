@@ -1,12 +1,23 @@
 package top.guoziyang.mydb.backend.vm;
 
+import java.util.List;
+
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
 public interface VersionManager {
+    // 读取和删除时 uid 是版本链的链头，作用于链中对 xid 可见的版本
     byte[] read(long xid, long uid) throws Exception;
+    List<byte[]> read(long xid, List<Long> uids) throws Exception;     // 批量读取，结果与 uids 一一对应，不可见的记录为 null
+    // 同上，不拷贝数据，在持有版本期间用 decoder 直接解码页面中的数据，不可见时不调用 decoder
+    <T> T read(long xid, long uid, EntryDecoder<T> decoder) throws Exception;
+    <T> List<T> read(long xid, List<Long> uids, EntryDecoder<T> decoder) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    long update(long xid, long uid, byte[] data) throws Exception;     // 删除可见版本并在链上接一个新版本，尽量与旧版本同页，返回新版本的 UID，没有可见版本时返回 0
+
+    long getHorizon();                                      // 清理边界，xmax 已提交且小于它的版本对所有事务都已删除
+    PruneRes prune(long root, long horizon) throws Exception;  // 释放链头 root 的版本链中对所有事务都已删除的版本，空间由 DataManager 回收
 
     long begin(int level);
     void commit(long xid) throws Exception;
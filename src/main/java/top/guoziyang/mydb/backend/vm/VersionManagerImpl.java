@@ -1,11 +1,15 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -14,9 +18,12 @@ import top.guoziyang.mydb.common.Error;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    private static final int READ_BATCH = 16;   // 批量读取时同时发出的读取数
+    private static final EntryDecoder<byte[]> COPY = view -> Arrays.copyOfRange(view.raw, view.start, view.end);
+
     TransactionManager tm;
     DataManager dm;
-    Map<Long, Transaction> activeTransaction;
+    LongObjectMap<Transaction> activeTransaction;
     Lock lock;
     LockTable lt;
 
@@ -24,7 +31,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new LongObjectMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
@@ -32,6 +39,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        return read(xid, uid, COPY);
+    }
+
+    @Override
+    public List<byte[]> read(long xid, List<Long> uids) throws Exception {
+        return read(xid, uids, COPY);
+    }
+
+    @Override
+    public <T> T read(long xid, long uid, EntryDecoder<T> decoder) throws Exception {
         lock.lock(); // 获取锁，防止并发问题
         Transaction t = activeTransaction.get(xid); // 从活动事务中获取事务对象
         lock.unlock(); // 释放锁
@@ -40,28 +57,81 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
-        try {
-            entry = super.get(uid); // 尝试获取数据项
-        } catch (Exception e) {
-            if (e == Error.NullEntryException) { // 如果数据项不存在，那么返回null
-                return null;
-            } else { // 如果出现其他错误，那么抛出错误
-                throw e;
-            }
+        Entry entry = getVisible(t, uid); // 沿版本链找到对当前事务可见的版本
+        if (entry == null) { // 没有可见的版本，返回null
+            return null;
         }
         try {
-            // 在事务隔离级别中讲解了该方法
-            if (Visibility.isVisible(tm, t, entry)) { // 如果数据项对当前事务可见，那么返回数据项的数据
-                return entry.data();
-            } else { // 如果数据项对当前事务不可见，那么返回null
-                return null;
-            }
+            return entry.decode(decoder); // 在持有版本期间解码数据
         } finally {
             entry.release(); // 释放数据项
         }
     }
 
+    /**
+     * 每批同时发出 READ_BATCH 条记录的读取，页面未命中的读取在 I/O 线程中并行进行，
+     * 之后按顺序等待结果并判断可见性。一批中的记录会同时占用页面缓存，批大小不宜过大。
+     */
+    @Override
+    public <T> List<T> read(long xid, List<Long> uids, EntryDecoder<T> decoder) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if (t.err != null) {
+            throw t.err;
+        }
+
+        List<T> res = new ArrayList<>(uids.size());
+        List<CompletableFuture<Entry>> batch = new ArrayList<>(READ_BATCH);
+        for (int i = 0; i < uids.size(); i += READ_BATCH) {
+            batch.clear();
+            for (int j = i; j < Math.min(i + READ_BATCH, uids.size()); j ++) {
+                batch.add(super.getAsync(uids.get(j)));
+            }
+            Exception err = null;
+            for (int j = 0; j < batch.size(); j ++) {
+                Entry entry;
+                try {
+                    entry = batch.get(j).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() != Error.NullEntryException && err == null) {
+                        err = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                    }
+                    res.add(null);
+                    continue;
+                }
+                // 出错后仍要等待并释放同一批中的其他记录
+                T data = null;
+                boolean follow = false;
+                try {
+                    if (err == null) {
+                        if (Visibility.isVisible(tm, t, entry)) {
+                            data = entry.decode(decoder);
+                        } else {
+                            follow = entry.getNext() != 0;
+                        }
+                    }
+                } finally {
+                    entry.release();
+                }
+                // 链头不可见时沿版本链逐个读取，只有更新过的记录会走到这里
+                if (follow) {
+                    try {
+                        data = read(xid, uids.get(i + j), decoder);
+                    } catch (Exception e) {
+                        err = e;
+                    }
+                }
+                res.add(data);
+            }
+            if (err != null) {
+                throw err;
+            }
+        }
+        return res;
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         lock.lock(); // 获取锁，防止并发问题
@@ -90,65 +160,231 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if (t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        // 找到可见的版本并加锁，没有可以删除的版本时返回false
+        Entry entry = lockVisible(t, uid);
+        if (entry == null) {
+            return false;
+        }
         try {
-            // 尝试获取数据项
-            entry = super.get(uid);
-        } catch (Exception e) {
-            // 如果数据项不存在，那么返回false
-            if (e == Error.NullEntryException) {
-                return false;
-            } else {
-                // 如果出现其他错误，那么抛出错误
-                throw e;
-            }
+            // 设置数据项的xmax为当前事务的ID，表示数据项被当前事务删除，没有后继版本
+            entry.setXmax(xid, 0);
+            // 返回true，表示删除操作成功
+            return true;
+        } finally {
+            // 释放数据项
+            entry.release();
+        }
+    }
+
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if (t.err != null) {
+            throw t.err;
+        }
+        Entry entry = lockVisible(t, uid);
+        if (entry == null) {
+            return 0;
         }
         try {
-            // 如果数据项对当前事务不可见，那么返回false
-            if (!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            // 新版本尽量放在旧版本的页面中，沿链读取时不必多读一个页面
+            long newUid = dm.insert(xid, Entry.wrapEntryRaw(xid, data), entry.getUid());
+            // 删除旧版本并指向新版本，事务回滚时摘除新版本
+            entry.setXmax(xid, newUid);
+            t.updated.put(entry.getUid(), newUid);
+            return newUid;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 从链头 root 开始沿版本链查找对 t 可见的版本，返回时持有该 Entry，调用者负责释放；没有可见的版本时返回 null
+     * 链中的版本可能正被清理释放，清理总是先让前驱跳过它再释放，读到已释放的版本时从链头重新查找
+     */
+    private Entry getVisible(Transaction t, long root) throws Exception {
+        long uid = root;
+        while (true) {
+            Entry entry = getEntry(uid);
+            if (entry == null) {
+                if (uid == root) return null;
+                uid = root;
+                continue;
             }
-            Lock l = null;
+            if (Visibility.isVisible(tm, t, entry)) {
+                return entry;
+            }
+            long next = entry.getNext();
+            entry.release();
+            if (next == 0) return null;
+            uid = next;
+        }
+    }
+
+    /**
+     * 找到链头 root 的版本链中对 t 可见的版本，并等待其他正在修改它的事务结束
+     * 返回时持有该 Entry，调用者负责释放；没有可以修改的版本时返回 null
+     */
+    private Entry lockVisible(Transaction t, long root) throws Exception {
+        long xid = t.xid;
+        while (true) {
+            Entry entry = getVisible(t, root);
+            if (entry == null) {
+                return null;
+            }
+            boolean keep = false;
             try {
-                // 尝试为数据项添加锁
-                l = lt.add(xid, uid);
-            } catch (Exception e) {
-                // 如果出现并发更新的错误，那么中止事务，并抛出错误
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+                Lock l = null;
+                try {
+                    // 尝试为数据项添加锁
+                    l = lt.add(xid, entry.getUid());
+                } catch (Exception e) {
+                    // 如果出现并发更新的错误，那么中止事务，并抛出错误
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+                // 如果成功获取到锁，那么锁定并立即解锁
+                if (l != null) {
+                    l.lock();
+                    l.unlock();
+                }
+
+                // 如果数据项已经被当前事务删除，那么返回null
+                long xmax = entry.getXmax();
+                if (xmax == xid) {
+                    return null;
+                }
+
+                // 如果数据项的版本被跳过，那么中止事务，并抛出错误
+                if (Visibility.isVersionSkip(tm, t, entry)) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+
+                // 读已提交的事务等到锁时，持有锁的事务可能已经删除或更新了这个版本，沿链重新查找
+                if (xmax != 0 && tm.isCommitted(xmax)) {
+                    continue;
+                }
+                keep = true;
+                return entry;
+            } finally {
+                if (!keep) {
+                    entry.release();
+                }
             }
-            // 如果成功获取到锁，那么锁定并立即解锁
-            if (l != null) {
-                l.lock();
-                l.unlock();
+        }
+    }
+
+    // 读取 Entry，数据项不存在或已被释放时返回 null
+    private Entry getEntry(long uid) throws Exception {
+        try {
+            return super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return null;
             }
+            throw e;
+        }
+    }
 
-            // 如果数据项已经被当前事务删除，那么返回false
-            if (entry.getXmax() == xid) {
-                return false;
+    /**
+     * 活跃事务的 xid，以及可重复读事务快照中的 xid 的最小值
+     * xmax 小于它且已提交的删除，在每个活跃事务开始之前就已提交，之后开始的事务 xid 更大，都能看到删除；
+     * 这样的版本不会再被任何事务读到。没有活跃事务时返回 Long.MAX_VALUE
+     */
+    @Override
+    public long getHorizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for (long xid : activeTransaction.keys()) {
+                if (xid == TransactionManagerImpl.SUPER_XID) continue;
+                horizon = Math.min(horizon, xid);
+                Transaction t = activeTransaction.get(xid);
+                if (t.snapshot == null) continue;
+                for (long s : t.snapshot.toArray()) {
+                    if (s != TransactionManagerImpl.SUPER_XID) {
+                        horizon = Math.min(horizon, s);
+                    }
+                }
             }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // 如果数据项的版本被跳过，那么中止事务，并抛出错误
-            if (Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+    /**
+     * xmax 已提交且小于 horizon 的版本对所有事务都已删除。
+     * 链尾已删除且整条链都已删除时释放整条链；否则释放链中间已删除的版本，让它的前驱直接指向它的后继。
+     * 链头被索引指向，只随整条链一起释放。只由清理线程调用，同一条链不会被同时清理
+     */
+    @Override
+    public PruneRes prune(long root, long horizon) throws Exception {
+        PruneRes res = new PruneRes();
+        res.freed = new ArrayList<>();
+        List<Entry> chain = new ArrayList<>();
+        try {
+            long uid = root;
+            while (uid != 0) {
+                Entry entry = getEntry(uid);
+                if (entry == null) break;
+                chain.add(entry);
+                uid = entry.getNext();
+            }
+            if (chain.isEmpty()) {
+                return res;
             }
 
-            // 设置数据项的xmax为当前事务的ID，表示数据项被当前事务删除
-            entry.setXmax(xid);
-            // 返回true，表示删除操作成功
-            return true;
+            Entry tail = chain.get(chain.size() - 1);
+            if (tail.getNext() == 0 && isDead(tail, horizon)) {
+                boolean allDead = true;
+                for (Entry entry : chain) {
+                    allDead &= isDead(entry, horizon);
+                }
+                if (allDead) {
+                    for (Entry entry : chain) {
+                        res.freed.add(entry.data());
+                        dm.free(TransactionManagerImpl.SUPER_XID, entry.getUid());
+                    }
+                    res.chainFreed = true;
+                    return res;
+                }
+                res.retry = true;
+            }
 
+            // 先让前驱跳过，再释放，沿链读取的事务不会找不到后继
+            Entry prev = chain.get(0);
+            for (int i = 1; i < chain.size() - 1; i ++) {
+                Entry entry = chain.get(i);
+                if (isDead(entry, horizon)) {
+                    prev.setNext(entry.getNext());
+                    res.freed.add(entry.data());
+                    dm.free(TransactionManagerImpl.SUPER_XID, entry.getUid());
+                } else {
+                    prev = entry;
+                }
+            }
+            return res;
         } finally {
-            // 释放数据项
-            entry.release();
+            for (Entry entry : chain) {
+                entry.release();
+            }
         }
     }
 
+    private boolean isDead(Entry entry, long horizon) {
+        long xmax = entry.getXmax();
+        return xmax != TransactionManagerImpl.SUPER_XID && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     @Override
     public long begin(int level) {
         lock.lock(); // 获取锁，防止并发问题
@@ -174,7 +410,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         } catch (NullPointerException n) { // 如果事务对象为null，打印事务ID和活动事务的键集，然后抛出异常
             System.out.println(xid);
-            System.out.println(activeTransaction.keySet());
+            System.out.println(Arrays.toString(activeTransaction.keys()));
             Panic.panic(n);
         }
 
@@ -208,12 +444,38 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         // 如果事务已经被自动中止，那么直接返回，不做任何处理
         if (t.autoAborted) return;
+        // 释放锁之前摘除回滚的新版本，否则下一次更新会覆盖后继指针，新版本再也找不到
+        unlinkUpdates(t);
         // 从锁表中移除这个事务的锁
         lt.remove(xid);
         // 调用事务管理器的abort方法，进行事务的中止操作
         tm.abort(xid);
     }
 
+    /**
+     * 让事务更新过的版本不再被删除、不再指向新版本，并释放新版本
+     * 这时仍持有被更新版本的锁，其他事务不会同时修改它；新版本只对这个事务可见，没有其他事务会读到它。
+     * 被更新的版本也可能是这个事务写入的新版本，已经先被释放，跳过即可
+     */
+    private void unlinkUpdates(Transaction t) {
+        try {
+            for (long uid : t.updated.keys()) {
+                Entry entry = getEntry(uid);
+                if (entry != null) {
+                    try {
+                        entry.setXmax(TransactionManagerImpl.SUPER_XID, 0);
+                    } finally {
+                        entry.release();
+                    }
+                }
+                dm.free(TransactionManagerImpl.SUPER_XID, t.updated.getOrDefault(uid, 0));
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        t.updated.clear();
+    }
+
     public void releaseEntry(Entry entry) {
         super.release(entry.getUid());
     }
@@ -227,6 +489,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         return entry;
     }
 
+    @Override
+    protected CompletableFuture<Entry> getForCacheAsync(long uid) {
+        return Entry.loadEntryAsync(this, uid).thenApply(entry -> {
+            if(entry == null) {
+                throw new CompletionException(Error.NullEntryException);
+            }
+            return entry;
+        });
+    }
+
     @Override
     protected void releaseForCache(Entry entry) {
         entry.remove();
@@ -9,6 +9,9 @@ public class Error {
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception BadDataFileException = new RuntimeException("Bad data file!");
+    public static final Exception DataFileVersionException = new RuntimeException("Unsupported data file version!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
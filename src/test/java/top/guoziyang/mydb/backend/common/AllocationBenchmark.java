@@ -0,0 +1,109 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import top.guoziyang.mydb.backend.common.primitive.LongList;
+import top.guoziyang.mydb.backend.common.primitive.LongLongMap;
+import top.guoziyang.mydb.backend.common.primitive.LongObjectMap;
+import top.guoziyang.mydb.backend.vm.LockTable;
+
+/**
+ * 比较装箱的 HashMap 与原始类型映射在热点操作上每次分配的字节数
+ * 分配量由 com.sun.management.ThreadMXBean 统计当前线程的累计分配得到
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.common.AllocationBenchmark
+ */
+public class AllocationBenchmark {
+
+    private static final int OPS = 1_000_000;
+    private static final com.sun.management.ThreadMXBean MX =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Work {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-40s %-14s %-10s%n", "workload", "bytes/op", "ns/op");
+
+        // 缓存命中：原先每次查找都要装箱 key
+        MockCache cache = new MockCache(1024);
+        for(long k = 0; k < 1024; k ++) cache.get(k);
+        measure("AbstractCache get/release (hit)", () -> {
+            for(int i = 0; i < OPS; i ++) {
+                long key = (i * 7919L) & 1023;
+                cache.get(key);
+                cache.release(key);
+            }
+        });
+
+        // 锁表：事务加锁若干资源后释放，与原先基于 HashMap/ArrayList 的实现对照
+        measure("LockTable add/remove (primitive)", () -> {
+            LockTable lt = new LockTable();
+            for(int i = 0; i < OPS / 4; i ++) {
+                long xid = i;
+                for(long uid = 0; uid < 4; uid ++) lt.add(xid, (i << 2) + uid + 1000);
+                lt.remove(xid);
+            }
+        });
+        measure("lock-table maps (boxed HashMap)", () -> {
+            Map<Long, List<Long>> x2u = new HashMap<>();
+            Map<Long, Long> u2x = new HashMap<>();
+            for(int i = 0; i < OPS / 4; i ++) {
+                long xid = i;
+                for(long uid = 0; uid < 4; uid ++) {
+                    long u = (i << 2) + uid + 1000;
+                    u2x.put(u, xid);
+                    x2u.computeIfAbsent(xid, x -> new ArrayList<>()).add(0, u);
+                }
+                for(long u : x2u.remove(xid)) u2x.remove(u);
+            }
+        });
+        measure("lock-table maps (primitive)", () -> {
+            LongObjectMap<LongList> x2u = new LongObjectMap<>();
+            LongLongMap u2x = new LongLongMap();
+            for(int i = 0; i < OPS / 4; i ++) {
+                long xid = i;
+                LongList l = new LongList();
+                x2u.put(xid, l);
+                for(long uid = 0; uid < 4; uid ++) {
+                    long u = (i << 2) + uid + 1000;
+                    u2x.put(u, xid);
+                    l.add(u);
+                }
+                LongList r = x2u.remove(xid);
+                while(!r.isEmpty()) u2x.remove(r.removeLast());
+            }
+        });
+
+        // 活跃事务表查找
+        Map<Long, Object> boxed = new HashMap<>();
+        LongObjectMap<Object> primitive = new LongObjectMap<>();
+        for(long k = 0; k < 64; k ++) {
+            boxed.put(k + 1000, k);
+            primitive.put(k + 1000, k);
+        }
+        measure("active-xid lookup (boxed HashMap)", () -> {
+            for(int i = 0; i < OPS; i ++) boxed.get(1000L + (i & 63));
+        });
+        measure("active-xid lookup (primitive)", () -> {
+            for(int i = 0; i < OPS; i ++) primitive.get(1000L + (i & 63));
+        });
+        cache.close();
+    }
+
+    private static void measure(String name, Work work) throws Exception {
+        work.run();     // 预热，使 JIT 完成编译
+        long tid = Thread.currentThread().getId();
+        long bytes = MX.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        work.run();
+        long ns = System.nanoTime() - start;
+        bytes = MX.getThreadAllocatedBytes(tid) - bytes;
+        System.out.printf("%-40s %-14.2f %-10.1f%n", name, (double)bytes / OPS, (double)ns / OPS);
+    }
+}
@@ -0,0 +1,69 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AbstractCache 命中路径的扩展性测试
+ * 先把热点资源全部载入并保持引用，之后 1~N 个线程随机 get/release，统计每秒操作数
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.common.CacheBenchmark [最大线程数]
+ */
+public class CacheBenchmark {
+
+    private static final int HOT_KEYS = 1024;
+    private static final long DURATION_MS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        MockCache cache = new MockCache(HOT_KEYS);
+        for(long k = 0; k < HOT_KEYS; k ++) {
+            cache.get(k);   // 保持一次引用，保证测试期间全部命中
+        }
+
+        System.out.printf("%-8s %-16s %-10s%n", "threads", "ops/s", "speedup");
+        double base = 0;
+        for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            run(cache, threads);   // 预热
+            double ops = run(cache, threads);
+            if(base == 0) base = ops;
+            System.out.printf("%-8d %-16.0f %-10.2f%n", threads, ops, ops / base);
+            if(threads == maxThreads) break;
+        }
+    }
+
+    private static double run(MockCache cache, int threads) throws Exception {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long n = 0;
+                    while(System.nanoTime() < deadline[0]) {
+                        for(int j = 0; j < 1000; j ++) {
+                            long key = random.nextInt(HOT_KEYS);
+                            cache.get(key);
+                            cache.release(key);
+                        }
+                        n += 1000;
+                    }
+                    ops.add(n);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION_MS * 1_000_000;
+        start.countDown();
+        done.await();
+        return ops.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -31,6 +32,33 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testCacheConcurrent() throws Exception {
+        cache = new MockCache();
+        cdl = new CountDownLatch(8);
+        for(int i = 0; i < 8; i ++) {
+            new Thread(() -> hotWork()).start();
+        }
+        cdl.await();
+    }
+
+    // 少量热点资源上的并发 get/release，覆盖命中路径与驱逐路径之间的竞争
+    private void hotWork() {
+        for(int i = 0; i < 20000; i++) {
+            long uid = random.nextInt(64);
+            long h = 0;
+            try {
+                h = cache.get(uid);
+            } catch (Exception e) {
+                if(e == Error.CacheFullException) continue;
+                Panic.panic(e);
+            }
+            assert h == uid;
+            cache.release(h);
+        }
+        cdl.countDown();
+    }
+
     private void work() {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
@@ -46,4 +74,125 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(1);
+        AbstractCache<Long> slowCache = new AbstractCache<Long>(10) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                Thread.sleep(50);
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+
+        int workers = 8;
+        CountDownLatch got = new CountDownLatch(workers);
+        CountDownLatch done = new CountDownLatch(workers);
+        AtomicInteger failures = new AtomicInteger(0);
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                try {
+                    assert slowCache.get(1) == 1;
+                    // 所有线程都拿到资源后再释放，避免资源被提前驱逐后重新加载
+                    got.countDown();
+                    got.await();
+                    slowCache.release(1);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    got.countDown();
+                }
+                done.countDown();
+            }).start();
+            if(i == 0) started.await();
+        }
+        done.await();
+        assert failures.get() == 0;
+        assert loads.get() == 1;
+
+        // 加载失败时，所有等待者都拿到同一个异常
+        loads.set(0);
+        CountDownLatch failStarted = new CountDownLatch(1);
+        CountDownLatch failDone = new CountDownLatch(workers);
+        AbstractCache<Long> failCache = new AbstractCache<Long>(10) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                failStarted.countDown();
+                Thread.sleep(50);
+                throw Error.NullEntryException;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                try {
+                    failCache.get(2);
+                } catch (Exception e) {
+                    if(e == Error.NullEntryException) failures.incrementAndGet();
+                }
+                failDone.countDown();
+            }).start();
+            if(i == 0) failStarted.await();
+        }
+        failDone.await();
+        assert failures.get() == workers;
+    }
+
+    // 统计实际加载次数的缓存
+    static class CountingCache extends AbstractCache<Long> {
+        int loads = 0;
+
+        CountingCache(int maxResource, ReplacementPolicy policy) {
+            super(maxResource, policy);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads ++;
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+
+        void touch(long key) throws Exception {
+            get(key);
+            release(key);
+        }
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        int capacity = 100, hot = 40;
+        CountingCache cache = new CountingCache(capacity, new TwoQueuePolicy(capacity));
+        // 热点资源被反复访问，进入 Am
+        for(int round = 0; round < 5; round ++) {
+            for(long k = 0; k < hot; k ++) cache.touch(k);
+            for(long k = 1000 + round * capacity; k < 1000 + (round + 1) * capacity; k ++) cache.touch(k);
+        }
+
+        // 大范围扫描期间，每扫过 10 个资源访问一次热点资源
+        int before = cache.loads;
+        int hotLoads = 0;
+        long next = 0;
+        for(long k = 100000; k < 110000; k ++) {
+            cache.touch(k);     // 同一资源被扫描时连续访问多次
+            cache.touch(k);
+            if(k % 10 == 0) {
+                int l = cache.loads;
+                cache.touch(next);
+                hotLoads += cache.loads - l;
+                next = (next + 1) % hot;
+            }
+        }
+        assert cache.loads - before >= 10000;
+        assert hotLoads == 0;
+    }
 }
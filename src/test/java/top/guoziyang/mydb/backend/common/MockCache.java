@@ -6,6 +6,10 @@ public class MockCache extends AbstractCache<Long> {
         super(50);
     }
 
+    public MockCache(int maxResource) {
+        super(maxResource);
+    }
+
     @Override
     protected Long getForCache(long key) throws Exception {
         return key;
@@ -0,0 +1,120 @@
+package top.guoziyang.mydb.backend.common.primitive;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongMapTest {
+
+    // key 取值范围很小，保证大量冲突、删除后前移和 key 0 都被覆盖到
+    private long randomKey(Random random) {
+        return random.nextInt(200) - 20;
+    }
+
+    @Test
+    public void testLongObjectMap() {
+        Random random = new Random(1);
+        LongObjectMap<Long> m = new LongObjectMap<>(4);
+        Map<Long, Long> expect = new HashMap<>();
+        for(int i = 0; i < 100000; i ++) {
+            long k = randomKey(random);
+            switch(random.nextInt(3)) {
+                case 0: assert Objects.equals(m.put(k, (long)i), expect.put(k, (long)i)); break;
+                case 1: assert Objects.equals(m.remove(k), expect.remove(k)); break;
+                default: assert Objects.equals(m.get(k), expect.get(k)); assert m.containsKey(k) == expect.containsKey(k);
+            }
+            assert m.size() == expect.size();
+        }
+        long[] keys = m.keys();
+        Arrays.sort(keys);
+        assert Arrays.equals(keys, expect.keySet().stream().mapToLong(Long::longValue).sorted().toArray());
+    }
+
+    @Test
+    public void testLongIntMapAndSet() {
+        Random random = new Random(2);
+        LongIntMap m = new LongIntMap(4);
+        LongLongMap lm = new LongLongMap(4);
+        LongSet s = new LongSet(4);
+        Map<Long, Integer> expect = new HashMap<>();
+        Set<Long> expectSet = new HashSet<>();
+        for(int i = 0; i < 100000; i ++) {
+            long k = randomKey(random);
+            if(random.nextBoolean()) {
+                m.put(k, i);
+                lm.put(k, -i);
+                expect.put(k, i);
+                assert s.add(k) == expectSet.add(k);
+            } else {
+                m.remove(k);
+                lm.remove(k);
+                expect.remove(k);
+                assert s.remove(k) == expectSet.remove(k);
+            }
+            long q = randomKey(random);
+            assert m.getOrDefault(q, -1) == expect.getOrDefault(q, -1);
+            assert lm.getOrDefault(q, 1) == -expect.getOrDefault(q, -1);
+            assert s.contains(q) == expectSet.contains(q);
+            assert m.size() == expect.size() && lm.size() == expect.size() && s.size() == expectSet.size();
+        }
+    }
+
+    @Test
+    public void testConcurrentLongObjectMap() {
+        Random random = new Random(3);
+        ConcurrentLongObjectMap<Long> m = new ConcurrentLongObjectMap<>(4);
+        Map<Long, Long> expect = new HashMap<>();
+        for(int i = 0; i < 100000; i ++) {
+            long k = randomKey(random);
+            switch(random.nextInt(3)) {
+                case 0: assert Objects.equals(m.put(k, (long)i), expect.put(k, (long)i)); break;
+                case 1: assert Objects.equals(m.remove(k), expect.remove(k)); break;
+                default: assert Objects.equals(m.get(k), expect.get(k));
+            }
+            assert m.size() == expect.size();
+        }
+        long[] sum = new long[1];
+        m.forEachValue(v -> sum[0] += v);
+        assert sum[0] == expect.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Test
+    public void testLongList() {
+        LongList l = new LongList(1);
+        for(long i = 0; i < 10; i ++) l.add(i);
+        assert l.removeValue(3) && !l.removeValue(3);
+        assert l.size() == 9 && l.get(3) == 4 && !l.contains(3);
+        assert l.removeLast() == 9;
+    }
+
+    @Test
+    public void testLongQueue() {
+        Random random = new Random(4);
+        LongQueue q = new LongQueue(4);
+        LinkedHashSet<Long> expect = new LinkedHashSet<>();
+        for(int i = 0; i < 100000; i ++) {
+            long k = randomKey(random);
+            switch(random.nextInt(4)) {
+                case 0: case 1: assert q.add(k) == expect.add(k); break;
+                case 2: assert q.remove(k) == expect.remove(k); break;
+                default:
+                    if(expect.isEmpty()) break;
+                    Iterator<Long> it = expect.iterator();
+                    assert q.poll() == it.next();
+                    it.remove();
+            }
+            assert q.size() == expect.size() && q.contains(k) == expect.contains(k);
+        }
+        assert Arrays.equals(q.toArray(), expect.stream().mapToLong(Long::longValue).toArray());
+        q.clear();
+        assert q.isEmpty();
+    }
+}
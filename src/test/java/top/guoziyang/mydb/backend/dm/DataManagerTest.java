@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,7 +15,10 @@ import org.junit.Test;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -110,6 +114,7 @@ public class DataManagerTest {
 
         new File("/tmp/TESTDMSingle.db").delete();
         new File("/tmp/TESTDMSingle.log").delete();
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -130,6 +135,321 @@ public class DataManagerTest {
 
         new File("/tmp/TestDMMulti.db").delete();
         new File("/tmp/TestDMMulti.log").delete();
+        new File("/tmp/TestDMMulti.fsm").delete();
+    }
+
+    @Test
+    public void testLargePage() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.pageSize = PageCache.MAX_PAGE_SIZE;
+        DataManager dm0 = DataManager.create("/tmp/TestDMLargePage", PageCache.MAX_PAGE_SIZE*10, tm0, opts);
+        assert dm0.getPageSize() == PageCache.MAX_PAGE_SIZE;
+
+        // 超过 32KB 的数据项，以及页内偏移超过 32KB 的数据项
+        byte[] big = RandomUtil.randomBytes(40000);
+        long bigUid = dm0.insert(0, big);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(500);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        dm0.close();
+
+        // 重新打开时页大小来自数据文件
+        dm0 = DataManager.open("/tmp/TestDMLargePage", PageCache.MAX_PAGE_SIZE*10, tm0);
+        assert dm0.getPageSize() == PageCache.MAX_PAGE_SIZE;
+        DataItem di = dm0.read(bigUid);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), big);
+        di.release();
+        for(int i = 0; i < uids.size(); i ++) {
+            di = dm0.read(uids.get(i));
+            sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        dm0.close();
+
+        assert new File("/tmp/TestDMLargePage.db").delete();
+        assert new File("/tmp/TestDMLargePage.log").delete();
+        assert new File("/tmp/TestDMLargePage.fsm").delete();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDMCompact");
+        DataManager dm0 = DataManager.create("/tmp/TestDMCompact", PageCache.PAGE_SIZE*30, tm0);
+        List<Long> dead = new ArrayList<>();
+        for(int i = 0; i < 80; i ++) {
+            dead.add(dm0.insert(0, RandomUtil.randomBytes(1000)));
+        }
+        byte[] keep = RandomUtil.randomBytes(1000);
+        long keepUid = dm0.insert(0, keep);
+        int maxPgno = 0;
+        for (long uid : dead) {
+            dm0.free(0, uid);
+            maxPgno = Math.max(maxPgno, (int)(uid >>> 32));
+        }
+        assert dm0.read(dead.get(0)) == null;
+
+        // 只有数据项全部失效的页面被回收，keepUid 所在的页面保留
+        int reclaimed = dm0.compact();
+        assert reclaimed >= 8;
+        assert dm0.compact() == 0;
+
+        // 新数据写进回收的页面，文件不再增长；旧 UID 即使落在同一位置也读不到新数据
+        List<Long> fresh = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 40; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            long uid = dm0.insert(0, data);
+            assert (int)(uid >>> 32) <= maxPgno + 1;   // 回收的页面，或 keepUid 所在的页面
+            fresh.add(uid);
+            datas.add(data);
+        }
+        for (long uid : dead) {
+            assert dm0.read(uid) == null;
+        }
+
+        // 模拟崩溃后重新打开，由日志重做页面回收和之后的插入
+        ((DataManagerImpl)dm0).crash();
+        dm0 = DataManager.open("/tmp/TestDMCompact", PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < fresh.size(); i ++) {
+            DataItem di = dm0.read(fresh.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        for (long uid : dead) {
+            assert dm0.read(uid) == null;
+        }
+        DataItem di = dm0.read(keepUid);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), keep);
+        di.release();
+        dm0.close();
+        tm0.close();
+
+        assert new File("/tmp/TestDMCompact.db").delete();
+        assert new File("/tmp/TestDMCompact.log").delete();
+        assert new File("/tmp/TestDMCompact.xid").delete();
+        new File("/tmp/TestDMCompact.fsm").delete();
+    }
+
+    @Test
+    public void testCompactInPage() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestDMCompactInPage");
+        DataManager dm0 = DataManager.create("/tmp/TestDMCompactInPage", PageCache.PAGE_SIZE*30, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 8; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        int pgno = (int)(uids.get(0) >>> 32);
+        for (long uid : uids) {
+            assert (int)(uid >>> 32) == pgno;
+        }
+        // 页面已放不下 1000 字节的数据项
+        byte[] otherData = RandomUtil.randomBytes(1000);
+        long other = dm0.insert(0, otherData);
+        int otherPgno = (int)(other >>> 32);
+        assert otherPgno != pgno;
+
+        // 失效一半数据项后整理页面，有效数据项移动位置但 UID 不变
+        for(int i = 0; i < uids.size(); i += 2) {
+            dm0.free(0, uids.get(i));
+        }
+        assert dm0.compact() == 0;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            if(i % 2 == 0) {
+                assert di == null;
+                continue;
+            }
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+
+        // 收回的空间被新数据项使用，两个页面放得下，文件不再增长；槽号不重用，旧 UID 仍然读不到
+        List<Long> fresh = new ArrayList<>();
+        boolean reused = false;
+        for(int i = 0; i < 10; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            long uid = dm0.insert(0, data);
+            int p = (int)(uid >>> 32);
+            assert p == pgno || p == otherPgno;
+            reused |= p == pgno;
+            assert !uids.contains(uid);
+            fresh.add(uid);
+            datas.add(data);
+        }
+        assert reused;
+
+        // 模拟崩溃后重新打开，重做时槽中的数据已被整理掉的日志被跳过
+        ((DataManagerImpl)dm0).crash();
+        dm0 = DataManager.open("/tmp/TestDMCompactInPage", PageCache.PAGE_SIZE*30, tm0);
+        uids.addAll(fresh);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            if(i < 8 && i % 2 == 0) {
+                assert di == null;
+                continue;
+            }
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        DataItem di = dm0.read(other);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), otherData);
+        di.release();
+        dm0.close();
+        tm0.close();
+
+        assert new File("/tmp/TestDMCompactInPage.db").delete();
+        assert new File("/tmp/TestDMCompactInPage.log").delete();
+        assert new File("/tmp/TestDMCompactInPage.xid").delete();
+        assert new File("/tmp/TestDMCompactInPage.fsm").delete();
+    }
+
+    @Test
+    public void testRecoverAfterCompactInPage() throws Exception {
+        String path = "/tmp/TestDMRecoverCompacted";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        long aborted = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 8; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            long uid = dm0.insert(i % 2 == 0 ? aborted : 0, data);
+            if(i % 2 == 1) {
+                uids.add(uid);
+                datas.add(data);
+            }
+        }
+        int pgno = (int)(uids.get(0) >>> 32);
+
+        // 第一次崩溃，恢复时撤销未提交的插入，整理页面后空间被已提交事务的插入重用
+        ((DataManagerImpl)dm0).crash();
+        dm0 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        dm0.compact();
+        long committed = tm0.begin();
+        for(int i = 0; i < 4; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            long uid = dm0.insert(committed, data);
+            assert (int)(uid >>> 32) == pgno;
+            uids.add(uid);
+            datas.add(data);
+        }
+        tm0.commit(committed);
+
+        // 第二次崩溃，整理没有日志，重做时已回滚事务的插入不能再占住空间
+        ((DataManagerImpl)dm0).crash();
+        dm0 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        dm0.close();
+        tm0.close();
+
+        assert new File(path + ".db").delete();
+        assert new File(path + ".log").delete();
+        assert new File(path + ".xid").delete();
+        assert new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 20; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(1000)));
+        }
+        int maxPgno = (int)(uids.get(uids.size()-1) >>> 32);
+        dm0.close();
+        assert new File("/tmp/TestDMFsm.fsm").exists();
+
+        // 正常关闭后直接从空闲空间表填充 PageIndex，新数据写进已有页面的剩余空间
+        dm0 = DataManager.open("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        long uid = dm0.insert(0, RandomUtil.randomBytes(1000));
+        assert (int)(uid >>> 32) <= maxPgno;
+        dm0.close();
+
+        // 空闲空间表损坏时退回逐页扫描
+        Files.write(new File("/tmp/TestDMFsm.fsm").toPath(), new byte[]{1, 2, 3});
+        dm0 = DataManager.open("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        for (long u : uids) {
+            DataItem di = dm0.read(u);
+            assert di != null;
+            di.release();
+        }
+        dm0.close();
+
+        assert new File("/tmp/TestDMFsm.db").delete();
+        assert new File("/tmp/TestDMFsm.log").delete();
+        assert new File("/tmp/TestDMFsm.fsm").delete();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String path = "/tmp/TestRecoveryCheckpoint";
+        TransactionManager tm0 = new MockTransactionManager();
+        // 用最小的日志段，使检查点能回收日志段
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE*30, PageCacheOptions.defaults());
+        DataManagerImpl dm0 = new DataManagerImpl(pc, Logger.create(path, 1 << 18), tm0);
+        dm0.fsm = FreeSpaceMap.create(path, pc.getPageSize());
+        dm0.initPageOne();
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 600; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        dm0.checkpoint();
+        // 检查点之前的日志段已被回收
+        dm0.logger.rewind();
+        int logs = 0;
+        while(dm0.logger.next() != null) logs ++;
+        assert logs < 600;
+
+        for(int i = 0; i < 20; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+
+        // 模拟崩溃后重新打开，日志被回收的页面不能在恢复时截掉
+        dm0.crash();
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), datas.get(i));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".fsm").delete();
+        for(int i = 0; i < 8; i ++) {
+            new File(path + ".log." + i).delete();
+        }
     }
 
     @Test
@@ -142,6 +462,10 @@ public class DataManagerTest {
         initUids();
         int workerNums = 10;
         for(int i = 0; i < 8; i ++) {
+            if(i > 0) {
+                // 模拟崩溃，下次打开时执行恢复
+                ((DataManagerImpl)dm0).crash();
+            }
             dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0);
             CountDownLatch cdl = new CountDownLatch(workerNums);
             for(int k = 0; k < workerNums; k ++) {
@@ -155,6 +479,7 @@ public class DataManagerTest {
         
         new File("/tmp/TestRecoverySimple.db").delete();
         new File("/tmp/TestRecoverySimple.log").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
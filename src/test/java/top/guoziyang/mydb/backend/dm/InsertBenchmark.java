@@ -0,0 +1,79 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+
+/**
+ * DataManager 并发插入的扩展性测试
+ * 1~N 个线程同时插入固定大小的数据项，统计每秒插入数，以及插入的数据占用页面空间的比例。
+ * 插入者争抢同几个页面时会频繁新建页面，填充率随线程数下降。
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.dm.InsertBenchmark [最大线程数] [数据项字节数]
+ */
+public class InsertBenchmark {
+
+    private static final long DURATION_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int itemSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        System.out.printf("%-8s %-16s %-10s %-10s%n", "threads", "inserts/s", "speedup", "fill");
+        double base = 0;
+        for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            String path = "/tmp/insert_bench";
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".fsm").delete();
+            DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, 64L << 20, new MockTransactionManager());
+
+            long[] inserted = new long[1];
+            double ops = run(dm, threads, itemSize, inserted);
+            if(base == 0) base = ops;
+            // 第一页是 PageOne，不存放数据
+            double fill = (double)inserted[0] * (itemSize + 3) / ((long)(dm.pc.getPageNumber() - 1) * dm.getPageSize());
+            System.out.printf("%-8d %-16.0f %-10.2f %-10.3f%n", threads, ops, ops / base, fill);
+
+            dm.close();
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".fsm").delete();
+            if(threads == maxThreads) break;
+        }
+    }
+
+    private static double run(DataManager dm, int threads, int itemSize, long[] inserted) throws Exception {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        byte[] data = new byte[itemSize];
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long n = 0;
+                    while(System.nanoTime() < deadline[0]) {
+                        dm.insert(0, data);
+                        n ++;
+                    }
+                    ops.add(n);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION_MS * 1_000_000;
+        start.countDown();
+        done.await();
+        inserted[0] = ops.sum();
+        return ops.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
@@ -3,12 +3,14 @@ package top.guoziyang.mydb.backend.dm;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.MockDataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
 public class MockDataManager implements DataManager {
 
@@ -51,7 +53,44 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, byte[] data, long near) throws Exception {
+        return insert(xid, data);
+    }
+
     @Override
     public void close() {}
+
+    @Override
+    public CompletableFuture<DataItem> readAsync(long uid) {
+        try {
+            return CompletableFuture.completedFuture(read(uid));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void free(long xid, long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int compact() {
+        return 0;
+    }
+
+    @Override
+    public void checkpoint() {}
+
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
     
 }
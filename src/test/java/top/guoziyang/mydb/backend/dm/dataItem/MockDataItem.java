@@ -1,8 +1,6 @@
 package top.guoziyang.mydb.backend.dm.dataItem;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.page.Page;
@@ -12,17 +10,15 @@ public class MockDataItem implements DataItem {
     private SubArray data;
     private byte[] oldData;
     private long uid;
-    private Lock rLock;
-    private Lock wLock;
+    private StampedLock lock;
+    private long writeStamp;
 
     public static MockDataItem newMockDataItem(long uid, SubArray data) {
         MockDataItem di = new MockDataItem();
         di.data = data;
         di.oldData = new byte[data.end - data.start];
         di.uid = uid;
-        ReadWriteLock l = new ReentrantReadWriteLock();
-        di.rLock = l.readLock();
-        di.wLock = l.writeLock();
+        di.lock = new StampedLock();
         return di;
     }
 
@@ -33,19 +29,19 @@ public class MockDataItem implements DataItem {
 
     @Override
     public void before() {
-        wLock.lock();
+        writeStamp = lock.writeLock();
         System.arraycopy(data.raw, data.start, oldData, 0, oldData.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldData, 0, data.raw, data.start, oldData.length);
-        wLock.unlock();
+        lock.unlockWrite(writeStamp);
     }
 
     @Override
     public void after(long xid) {
-        wLock.unlock();
+        lock.unlockWrite(writeStamp);
     }
 
     @Override
@@ -53,22 +49,34 @@ public class MockDataItem implements DataItem {
 
     @Override
     public void lock() {
-        wLock.lock();
+        writeStamp = lock.writeLock();
     }
 
     @Override
     public void unlock() {
-        wLock.unlock();
+        lock.unlockWrite(writeStamp);
     }
 
     @Override
     public void rLock() {
-        rLock.lock();
+        lock.readLock();
     }
 
     @Override
     public void rUnLock() {
-        rLock.unlock();
+        if(!lock.tryUnlockRead()) {
+            throw new IllegalMonitorStateException();
+        }
+    }
+
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
     }
 
     @Override
@@ -0,0 +1,71 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 日志组提交的扩展性测试
+ * 1~N 个线程同时写入提交大小的日志，每条 log 返回时都已落盘，统计每秒提交数和平均每次 fsync 写入的日志条数。
+ * 并发的提交共用一次 fsync，提交数应随线程数增长，直到磁盘带宽成为瓶颈。
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.dm.logger.GroupCommitBenchmark [最大线程数] [日志字节数]
+ */
+public class GroupCommitBenchmark {
+
+    private static final long DURATION_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int logSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        System.out.printf("%-8s %-16s %-10s %-10s%n", "threads", "commits/s", "speedup", "logs/sync");
+        double base = 0;
+        for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            String path = "/tmp/group_commit_bench";
+            new File(path + ".log").delete();
+            LoggerImpl lg = (LoggerImpl)Logger.create(path);
+
+            long[] committed = new long[1];
+            double ops = run(lg, threads, logSize, committed);
+            if(base == 0) base = ops;
+            System.out.printf("%-8d %-16.0f %-10.2f %-10.1f%n", threads, ops, ops / base, (double)committed[0] / lg.flushes);
+
+            lg.close();
+            new File(path + ".log").delete();
+            new File(LoggerImpl.segmentPath(path, 0)).delete();
+            if(threads == maxThreads) break;
+        }
+    }
+
+    private static double run(Logger lg, int threads, int logSize, long[] committed) throws Exception {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        byte[] data = new byte[logSize];
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long n = 0;
+                    while(System.nanoTime() < deadline[0]) {
+                        lg.log(data);
+                        n ++;
+                    }
+                    ops.add(n);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION_MS * 1_000_000;
+        start.countDown();
+        done.await();
+        committed[0] = ops.sum();
+        return ops.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
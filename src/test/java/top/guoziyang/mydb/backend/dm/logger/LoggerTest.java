@@ -1,6 +1,10 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -45,9 +49,121 @@ public class LoggerTest {
         assert log == null;
 
         lg.close();
+        // 关闭后写日志直接报错，不会一直等待落盘
+        boolean thrown = false;
+        try {
+            lg.log("fff".getBytes());
+        } catch (IllegalStateException e) {
+            thrown = true;
+        }
+        assert thrown;
 
 
 //        assert new File("/tmp/logger_test.log").delete();
         assert new File(path + ".log").delete();
+        new File(path + ".log.0").delete();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        String path = "/tmp/logger_group_test";
+        new File(path + ".log").delete();
+        LoggerImpl lg = (LoggerImpl)Logger.create(path);
+        int threads = 8, count = 200;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    lg.log((id + "-" + i).getBytes());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        lg.close();
+
+        // 重新打开时总校验值与全部日志一致，每条日志恰好出现一次
+        Logger lg2 = Logger.open(path);
+        lg2.rewind();
+        Set<String> seen = new HashSet<>();
+        byte[] log;
+        while((log = lg2.next()) != null) {
+            assert seen.add(new String(log));
+        }
+        assert seen.size() == threads * count;
+        lg2.close();
+        assert new File(path + ".log").delete();
+        new File(path + ".log.0").delete();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String path = "/tmp/logger_segment_test";
+        new File(path + ".log").delete();
+        int segmentSize = LoggerImpl.MIN_SEGMENT_SIZE;
+        Logger lg = Logger.create(path, segmentSize);
+        // 长短不一的日志写满几段，段尾放不下的日志写到下一段
+        int count = 300;
+        long[] lsns = new long[count];
+        for (int i = 0; i < count; i++) {
+            lsns[i] = lg.log(record(i));
+            assert lsns[i] / segmentSize == (lsns[i] + 8 + record(i).length - 1) / segmentSize;
+        }
+        lg.close();
+        assert new File(LoggerImpl.segmentPath(path, 2)).exists();
+
+        lg = Logger.open(path);
+        lg.rewind();
+        for (int i = 0; i < count; i++) {
+            byte[] log = lg.next();
+            assert log != null && new String(log).equals(new String(record(i)));
+        }
+        assert lg.next() == null;
+
+        // 回收之后从新的起始段读起，旧段改名留作备用
+        long recycleAt = lsns[count / 2];
+        lg.recycle(recycleAt);
+        assert !new File(LoggerImpl.segmentPath(path, 0)).exists();
+        lg.rewind();
+        byte[] first = lg.next();
+        int from = 0;
+        while(!new String(record(from)).equals(new String(first))) from ++;
+        assert lsns[from] / segmentSize == recycleAt / segmentSize;
+        lg.close();
+
+        // 截掉最后一条日志的一部分，重新打开时丢弃它，新日志接在前一条之后，备用段中的旧日志不会被读出
+        long last = lsns[count - 1];
+        try (RandomAccessFile raf = new RandomAccessFile(LoggerImpl.segmentPath(path, last / segmentSize), "rw")) {
+            raf.setLength(last % segmentSize + 10);
+        }
+        lg = Logger.open(path);
+        assert lg.position() == last;
+        lg.log("tail".getBytes());
+        lg.close();
+        lg = Logger.open(path);
+        lg.rewind();
+        byte[] log, prev = null;
+        int n = 0;
+        while((log = lg.next()) != null) {
+            prev = log;
+            n ++;
+        }
+        assert n == count - from && "tail".equals(new String(prev));
+        lg.close();
+
+        assert new File(path + ".log").delete();
+        for (long seg : LoggerImpl.listSegments(path)) {
+            new File(LoggerImpl.segmentPath(path, seg)).delete();
+        }
+    }
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[100 + i * 37 % 5000];
+        byte[] tag = ("log-" + i + "-").getBytes();
+        for (int k = 0; k < data.length; k++) {
+            data[k] = tag[k % tag.length];
+        }
+        return data;
     }
 }
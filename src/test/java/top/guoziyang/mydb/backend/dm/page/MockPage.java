@@ -26,6 +26,17 @@ public class MockPage implements Page {
         lock.unlock();
     }
 
+    @Override
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    @Override
+    public void beginWrite() {}
+
+    @Override
+    public void endWrite() {}
+
     @Override
     public void release() {}
 
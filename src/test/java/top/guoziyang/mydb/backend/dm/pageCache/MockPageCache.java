@@ -2,6 +2,7 @@ package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -54,5 +55,28 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void markDirty(Page pg) {}
+
+    @Override
+    public void checkpoint() {}
+
+    @Override
+    public CompletableFuture<Page> getPageAsync(int pgno) {
+        try {
+            return CompletableFuture.completedFuture(getPage(pgno));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void prefetch(int pgno, int count) {}
+
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
     
 }
@@ -0,0 +1,108 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.dm.page.Page;
+
+/**
+ * 多线程随机读页面的扩展性测试
+ *
+ * 文件远大于缓存，几乎每次读取都未命中，由 getForCache 从文件读取。
+ * 同时对比旧的读法（全局锁 + position + read）与带位置参数的读法在裸 FileChannel 上的吞吐。
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.dm.pageCache.PageCacheBenchmark [最大线程数] [文件页数]
+ */
+public class PageCacheBenchmark {
+
+    private static final long DURATION_MS = 1000;
+    private static final int CACHE_PAGES = 64;
+
+    interface Reader {
+        void read(int pgno) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        String path = "/tmp/pcache_bench";
+        new File(path + PageCacheImpl.DB_SUFFIX).delete();
+
+        PageCacheImpl pc = PageCache.create(path, (long)CACHE_PAGES * PageCache.PAGE_SIZE);
+        byte[] init = new byte[PageCache.PAGE_SIZE];
+        for(int i = 0; i < pages; i ++) {
+            pc.newPage(init);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "r");
+        FileChannel fc = raf.getChannel();
+        Lock lock = new ReentrantLock();
+
+        System.out.printf("%-8s %-22s %-22s %-22s%n", "threads", "locked read (ops/s)", "positional (ops/s)", "PageCache miss (ops/s)");
+        for(int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            double locked = run(threads, pages, pgno -> {
+                ByteBuffer buf = ByteBuffer.allocate(PageCache.PAGE_SIZE);
+                lock.lock();
+                try {
+                    fc.position(pc.pageOffset(pgno));
+                    fc.read(buf);
+                } finally {
+                    lock.unlock();
+                }
+            });
+            double positional = run(threads, pages, pgno -> {
+                ByteBuffer buf = ByteBuffer.allocate(PageCache.PAGE_SIZE);
+                fc.read(buf, pc.pageOffset(pgno));
+            });
+            double cache = run(threads, pages, pgno -> {
+                Page pg = pc.getPage(pgno);
+                pg.release();
+            });
+            System.out.printf("%-8d %-22.0f %-22.0f %-22.0f%n", threads, locked, positional, cache);
+            if(threads == maxThreads) break;
+        }
+        fc.close();
+        raf.close();
+        pc.close();
+        new File(path + PageCacheImpl.DB_SUFFIX).delete();
+    }
+
+    private static double run(int threads, int pages, Reader reader) throws Exception {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long n = 0;
+                    while(System.nanoTime() < deadline[0]) {
+                        for(int j = 0; j < 100; j ++) {
+                            reader.read(random.nextInt(pages) + 1);
+                        }
+                        n += 100;
+                    }
+                    ops.add(n);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        deadline[0] = begin + DURATION_MS * 1_000_000;
+        start.countDown();
+        done.await();
+        return ops.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
@@ -1,9 +1,13 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -14,6 +18,7 @@ import org.junit.Test;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
+import top.guoziyang.mydb.common.Error;
 
 public class PageCacheTest {
 
@@ -43,6 +48,342 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.mmap = true;
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 20, opts);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            // 修改后的页面在驱逐时经由映射写回
+            Page pg = pc.getPage(pgno);
+            pg.getData()[1] = (byte)(i + 1);
+            pg.setDirty(true);
+            pg.release();
+        }
+        // 截断后再扩展文件，映射需要重新建立
+        pc.truncateByBgno(80);
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 81;
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 20);
+        assert pc.getPageNumber() == 81;
+        for(int i = 1; i <= 80; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i - 1);
+            assert pg.getData()[1] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_mmap_test.db").delete();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_checkpoint_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0; i < 40; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 前台只标记脏页，由后台写线程或 checkpoint 写回
+        for(int i = 1; i <= 40; i ++) {
+            Page pg = pc.getPage(i);
+            pg.beginWrite();
+            pg.setDirty(true);
+            pg.getData()[0] = (byte)i;
+            pg.endWrite();
+            pg.release();
+        }
+        pc.checkpoint();
+        assert pc.getDirtyCount() == 0;
+
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_checkpoint_test.db", "r");
+        for(int i = 1; i <= 40; i ++) {
+            raf.seek(pc.pageOffset(i));
+            assert raf.read() == i;
+        }
+        raf.close();
+        pc.close();
+        assert new File("/tmp/pcacher_checkpoint_test.db").delete();
+    }
+
+    @Test
+    public void testExtentPreallocation() throws Exception {
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.extentSize = PageCache.PAGE_SIZE * 16;
+        PageCache pc = PageCache.create("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, opts);
+        for(int i = 1; i <= 20; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            assert pc.newPage(tmp) == i;
+        }
+        // 文件按整区段扩展，逻辑页数只到已分配的页
+        File f = new File("/tmp/pcacher_extent_test.db");
+        assert f.length() == FileHeader.HEADER_SIZE + 32L * PageCache.PAGE_SIZE;
+        assert pc.getPageNumber() == 20;
+        pc.close();
+
+        // 文件头记录页面格式版本
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        assert FileHeader.getVersion(FileHeader.read(raf.getChannel())) == FileHeader.VERSION;
+        raf.close();
+
+        // 重新打开时逻辑页数来自文件头，而不是文件长度
+        pc = PageCache.open("/tmp/pcacher_extent_test", PageCache.PAGE_SIZE * 20, opts);
+        assert pc.getPageNumber() == 20;
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 21;
+        assert f.length() == FileHeader.HEADER_SIZE + 32L * PageCache.PAGE_SIZE;
+        for(int i = 1; i <= 20; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+        assert f.delete();
+    }
+
+    @Test
+    public void testGetPageAsync() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_async_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 60; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        // 一次发出多个未命中页面的读取，再逐个等待
+        pc = PageCache.open("/tmp/pcacher_async_test", PageCache.PAGE_SIZE * 50);
+        List<CompletableFuture<Page>> futures = new ArrayList<>();
+        for(int i = 1; i <= 40; i ++) {
+            futures.add(pc.getPageAsync(i));
+        }
+        // 同一页面的同步读取与正在进行的异步读取共用一次加载
+        Page same = pc.getPage(20);
+        for(int i = 1; i <= 40; i ++) {
+            Page pg = futures.get(i - 1).join();
+            assert pg.getPageNumber() == i;
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        assert same == futures.get(19).join();
+        same.release();
+        // 文件的最后一页
+        Page pg = pc.getPageAsync(60).join();
+        assert pg.getData()[0] == (byte)60;
+        pg.release();
+        pc.close();
+        assert new File("/tmp/pcacher_async_test.db").delete();
+    }
+
+    @Test
+    public void testCompressedPageCache() throws Exception {
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.compress = true;
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 20, opts);
+        byte[] noise = RandomUtil.randomBytes(PageCache.PAGE_SIZE);
+        for(int i = 1; i <= 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            if(i == 50) {
+                // 无法压缩的页面按原样存储
+                System.arraycopy(noise, 0, tmp, 0, tmp.length);
+            }
+            tmp[0] = (byte)i;
+            assert pc.newPage(tmp) == i;
+        }
+        // 修改后的页面写到新位置，旧位置在映射表落盘后回收
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            pg.beginWrite();
+            pg.getData()[1] = (byte)(i + 1);
+            pg.setDirty(true);
+            pg.endWrite();
+            pg.release();
+        }
+        pc.checkpoint();
+        pc.truncateByBgno(80);
+        assert pc.newPage(new byte[PageCache.PAGE_SIZE]) == 81;
+        pc.close();
+
+        File f = new File("/tmp/pcacher_compress_test.db");
+        assert f.length() < FileHeader.HEADER_SIZE + 20L * PageCache.PAGE_SIZE;
+
+        // 是否压缩由文件头决定，打开时的 mmap 配置被忽略
+        PageCacheOptions mmap = PageCacheOptions.defaults();
+        mmap.mmap = true;
+        pc = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 20, mmap);
+        assert pc instanceof CompressedPageCacheImpl;
+        assert pc.getPageNumber() == 81;
+        for(int i = 1; i <= 80; i ++) {
+            Page pg = pc.getPage(i);
+            if(i == 50) {
+                assert Arrays.equals(Arrays.copyOfRange(pg.getData(), 2, PageCache.PAGE_SIZE), Arrays.copyOfRange(noise, 2, PageCache.PAGE_SIZE));
+            }
+            assert pg.getData()[0] == (byte)i;
+            assert pg.getData()[1] == (byte)(i + 1);
+            pg.release();
+        }
+        CompressionStats stats = ((CompressedPageCacheImpl)pc).stats();
+        assert stats.storedPages == 81;
+        assert stats.ratio() < 0.1;
+        assert stats.readAmplification() < 0.1;
+
+        // 立即刷盘的页面在崩溃后重新打开也能看到
+        Page pg = pc.getPage(1);
+        pg.getData()[2] = 7;
+        pg.setDirty(true);
+        pc.flushPage(pg);
+        pg.release();
+        pc.crash();
+        PageCache reopened = PageCache.open("/tmp/pcacher_compress_test", PageCache.PAGE_SIZE * 20);
+        pg = reopened.getPage(1);
+        assert pg.getData()[2] == 7;
+        pg.release();
+        reopened.close();
+
+        assert f.delete();
+        assert new File("/tmp/pcacher_compress_test" + CompressedPageCacheImpl.MAP_SUFFIX).delete();
+    }
+
+    // 统计实际从磁盘读取页面的次数
+    static class CountingPageCache extends PageCacheImpl {
+        AtomicInteger loads = new AtomicInteger(0);
+
+        CountingPageCache(RandomAccessFile file, int maxResource) {
+            super(file, file.getChannel(), maxResource);
+        }
+
+        @Override
+        protected Page getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            return super.getForCache(key);
+        }
+
+        boolean cached(int pgno) {
+            return isCached(pgno);
+        }
+
+        // 等待预读线程把 [from, to] 读入缓存
+        boolean awaitCached(int from, int to) throws InterruptedException {
+            for(int i = 0; i < 500; i ++) {
+                boolean all = true;
+                for(int pgno = from; pgno <= to && all; pgno ++) {
+                    all = cached(pgno);
+                }
+                if(all) return true;
+                Thread.sleep(10);
+            }
+            return false;
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        PageCache.create("/tmp/pcacher_readahead_test", PageCache.PAGE_SIZE * 100).close();
+        CountingPageCache pc = new CountingPageCache(new RandomAccessFile("/tmp/pcacher_readahead_test.db", "rw"), 100);
+        for(int i = 0; i < 64; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+
+        // 随机访问不触发预读
+        pc.getPage(40).release();
+        pc.getPage(7).release();
+        Thread.sleep(50);
+        assert pc.loads.get() == 2;
+
+        // 按页号顺序访问时，后面的页面被提前读入
+        pc.getPage(1).release();
+        pc.getPage(2).release();
+        assert pc.awaitCached(3, 34);
+        int loads = pc.loads.get();
+        pc.getPage(3).release();
+        assert pc.loads.get() == loads;
+
+        // 显式预读
+        pc.prefetch(50, 10);
+        assert pc.awaitCached(50, 59);
+        assert !pc.cached(64);
+        pc.close();
+        assert new File("/tmp/pcacher_readahead_test.db").delete();
+    }
+
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10).close();
+        CountingPageCache pc = new CountingPageCache(new RandomAccessFile("/tmp/pcacher_evict_test.db", "rw"), 10);
+        for(int i = 0; i < 30; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+
+        // 热页面在释放后仍然常驻，再次获取不读盘
+        Page hot = pc.getPage(1);
+        hot.release();
+        for(int i = 0; i < 100; i ++) {
+            pc.getPage(1).release();
+        }
+        assert pc.loads.get() == 1;
+
+        // 超出容量的页面按 CLOCK 驱逐，脏页驱逐时写回
+        for(int i = 2; i <= 30; i ++) {
+            Page pg = pc.getPage(i);
+            pg.getData()[0] = (byte)i;
+            pg.setDirty(true);
+            pg.release();
+            pc.getPage(1).release();
+        }
+        int loads = pc.loads.get();
+        pc.getPage(1).release();
+        assert pc.loads.get() == loads;
+        for(int i = 2; i <= 30; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        assert pc.loads.get() > loads;
+
+        // 所有页面都被引用时才会缓存满
+        Page[] pinned = new Page[10];
+        for(int i = 0; i < 10; i ++) {
+            pinned[i] = pc.getPage(i + 1);
+        }
+        try {
+            pc.getPage(11);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CacheFullException;
+        }
+        for(Page pg : pinned) {
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_evict_test.db").delete();
+    }
+
+    @Test
+    public void testFrameRecycling() throws Exception {
+        PageCache.create("/tmp/pcacher_frame_test", PageCache.PAGE_SIZE * 10).close();
+        CountingPageCache pc = new CountingPageCache(new RandomAccessFile("/tmp/pcacher_frame_test.db", "rw"), 10);
+        for(int i = 1; i <= 50; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 反复扫描远大于缓存的页面，页帧被驱逐的页面回收复用，总数不超过缓存容量
+        for(int round = 0; round < 3; round ++) {
+            for(int i = 1; i <= 50; i ++) {
+                Page pg = pc.getPage(i);
+                assert pg.getData()[0] == (byte)i;
+                pg.release();
+            }
+        }
+        assert pc.loads.get() >= 50;
+        assert pc.getAllocatedFrames() <= 10;
+        pc.close();
+        assert new File("/tmp/pcacher_frame_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
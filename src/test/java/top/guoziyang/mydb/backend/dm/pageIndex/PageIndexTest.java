@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
@@ -23,4 +25,37 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testInsertAffinity() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        // 放回的第一个页面成为当前线程的插入页，之后的进入区间
+        pIndex.putBack(1, 1000);
+        pIndex.putBack(2, 5000);
+        PageInfo pi = pIndex.select(500);
+        assert pi.pgno == 1;
+        pIndex.putBack(pi.pgno, 500);
+        // 当前插入页空间不够时退回区间，从区间中选择
+        pi = pIndex.select(600);
+        assert pi.pgno == 2;
+        pIndex.putBack(pi.pgno, 4400);
+
+        assert pIndex.remove(1).pgno == 1;
+        assert pIndex.remove(2).pgno == 2;
+        assert pIndex.remove(2) == null;
+        assert pIndex.select(0) == null;
+
+        // 其他线程（如后台整理）放入的页面进入区间，落在别的条带上的插入线程也能选到
+        int mine = pIndex.stripe();
+        AtomicInteger stripe = new AtomicInteger(mine);
+        while(stripe.get() == mine) {
+            Thread compactor = new Thread(() -> {
+                stripe.set(pIndex.stripe());
+                if(stripe.get() != mine) pIndex.add(3, 2000);
+            });
+            compactor.start();
+            compactor.join();
+        }
+        assert pIndex.select(1000).pgno == 3;
+    }
 }
@@ -2,11 +2,14 @@ package top.guoziyang.mydb.backend.im;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
@@ -33,4 +36,85 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeLargePage() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        PageCacheOptions opts = PageCacheOptions.defaults();
+        opts.pageSize = PageCache.MAX_PAGE_SIZE;
+        DataManager dm = DataManager.create("/tmp/TestTreeLargePage", PageCache.MAX_PAGE_SIZE*10, tm, opts);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.balance == Node.DEFAULT_BALANCE_NUMBER * 8;
+
+        int lim = 10000;
+        for(int i = lim-1; i >= 0; i --) {
+            tree.insert(i, i);
+        }
+        List<Long> uids = tree.searchRange(100, 5099);
+        assert uids.size() == 5000;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i + 100;
+        }
+        tree.close();
+        dm.close();
+
+        assert new File("/tmp/TestTreeLargePage.db").delete();
+        assert new File("/tmp/TestTreeLargePage.log").delete();
+        assert new File("/tmp/TestTreeLargePage.fsm").delete();
+    }
+
+    @Test
+    public void testSearchDuringInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int lim = 4000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i * 2, i * 2);
+        }
+
+        // 查找与分裂节点的插入同时进行，乐观读校验失败时重读，已有的键始终能找到
+        AtomicInteger errors = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            try {
+                for(int i = 0; i < lim; i ++) {
+                    tree.insert(i * 2 + 1, i * 2 + 1);
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+        });
+        Thread[] readers = new Thread[3];
+        for(int r = 0; r < readers.length; r ++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    while(writer.isAlive()) {
+                        long key = ThreadLocalRandom.current().nextInt(lim) * 2L;
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        writer.start();
+        for(Thread t : readers) t.start();
+        writer.join();
+        for(Thread t : readers) t.join();
+        assert errors.get() == 0;
+        assert tree.searchRange(0, lim * 2).size() == lim * 2;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+        assert new File("/tmp/TestTreeConcurrent.fsm").delete();
+    }
 }
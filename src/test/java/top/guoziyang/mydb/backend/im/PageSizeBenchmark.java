@@ -0,0 +1,72 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCacheOptions;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+
+/**
+ * 比较不同页大小下 B+ 树点查和范围扫描的吞吐
+ * 每种页大小使用相同的缓存内存，先插入 KEYS 个 key，再分别统计每秒点查次数和每秒扫描的 key 数
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.im.PageSizeBenchmark [key数] [缓存内存MB]
+ */
+public class PageSizeBenchmark {
+
+    private static final long DURATION_MS = 2000;
+    private static final int SCAN_LENGTH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long mem = (args.length > 1 ? Long.parseLong(args[1]) : 16) << 20;
+
+        System.out.printf("%-10s %-8s %-18s %-18s%n", "pageSize", "balance", "lookups/s", "scanned keys/s");
+        for(int pageSize = PageCache.MIN_PAGE_SIZE; pageSize <= PageCache.MAX_PAGE_SIZE; pageSize <<= 1) {
+            String path = "/tmp/page_size_bench";
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".fsm").delete();
+
+            PageCacheOptions opts = PageCacheOptions.defaults();
+            opts.pageSize = pageSize;
+            DataManager dm = DataManager.create(path, mem, new MockTransactionManager(), opts);
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+            for(int i = 0; i < keys; i ++) {
+                tree.insert(ThreadLocalRandom.current().nextInt(keys), i);
+            }
+
+            double lookups = run(() -> tree.search(ThreadLocalRandom.current().nextInt(keys)).size(), 1);
+            double scanned = run(() -> {
+                long left = ThreadLocalRandom.current().nextInt(keys);
+                return tree.searchRange(left, left + SCAN_LENGTH - 1).size();
+            }, 0);
+            System.out.printf("%-10d %-8d %-18.0f %-18.0f%n", pageSize, tree.balance, lookups, scanned);
+
+            tree.close();
+            dm.close();
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".fsm").delete();
+        }
+    }
+
+    interface Op {
+        int run() throws Exception;
+    }
+
+    // 先预热再计时，fixed 为 0 时按每次操作返回的数量累计，否则每次操作计为 fixed
+    private static double run(Op op, int fixed) throws Exception {
+        for(int i = 0; i < 1000; i ++) op.run();
+        long n = 0;
+        long begin = System.nanoTime();
+        long deadline = begin + DURATION_MS * 1_000_000;
+        while(System.nanoTime() < deadline) {
+            int c = op.run();
+            n += fixed == 0 ? c : fixed;
+        }
+        return n * 1e9 / (System.nanoTime() - begin);
+    }
+}
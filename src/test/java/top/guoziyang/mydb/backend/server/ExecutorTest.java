@@ -5,6 +5,10 @@ import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -75,4 +79,161 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testVacuum() throws Exception {
+        String vpath = "/tmp/mydb_vacuum";
+        TransactionManager tm = TransactionManager.create(vpath);
+        DataManager dm = DataManager.create(vpath, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(vpath, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute("insert into test_table values 1".getBytes());
+        for (int i = 2; i <= 5; i++) {
+            exe.execute(("update test_table set id = " + i + " where id = " + (i-1)).getBytes());
+        }
+
+        // 可重复读的事务开始后删除的版本，在它结束前不能清理
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        byte[] select = "select * from test_table where id > 0".getBytes();
+        assertEquals("[5]\n", new String(reader.execute(select)));
+        for (int i = 6; i <= 10; i++) {
+            exe.execute(("update test_table set id = " + i + " where id = " + (i-1)).getBytes());
+        }
+        while(tbm.vacuum() > 0);
+        assertEquals("[5]\n", new String(reader.execute(select)));
+        assertEquals("[10]\n", new String(exe.execute(select)));
+
+        reader.execute("commit".getBytes());
+        while(tbm.vacuum() > 0);
+        assertEquals("[10]\n", new String(exe.execute(select)));
+        exe.execute("delete from test_table where id = 10".getBytes());
+        while(tbm.vacuum() > 0);
+        assertEquals("", new String(exe.execute(select)));
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        new File(vpath + ".db").delete();
+        new File(vpath + ".bt").delete();
+        new File(vpath + ".log").delete();
+        new File(vpath + ".xid").delete();
+        new File(vpath + ".fsm").delete();
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        String opath = "/tmp/mydb_overflow";
+        TransactionManager tm = TransactionManager.create(opath);
+        DataManager dm = DataManager.create(opath, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(opath, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table doc_table id int32, body string (index id)".getBytes());
+
+        // 超过一页的字符串切块存放，记录中只有指针
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 3 * dm.getPageSize(); i++) {
+            sb.append(i).append(',');
+        }
+        String body = sb.toString();
+        exe.execute(("insert into doc_table values 1 '" + body + "'").getBytes());
+        exe.execute("insert into doc_table values 2 short".getBytes());
+
+        assertEquals("[1]\n", new String(exe.execute("select id from doc_table where id = 1".getBytes())));
+        assertEquals("[1, " + body + "]\n", new String(exe.execute("select * from doc_table where id = 1".getBytes())));
+        assertEquals("[short]\n", new String(exe.execute("select body from doc_table where id = 2".getBytes())));
+
+        // 更新其他字段时新版本带着一份大字段，旧版本清理后新版本仍然完整
+        exe.execute("update doc_table set id = 3 where id = 1".getBytes());
+        while(tbm.vacuum() > 0);
+        dm.compact();
+        assertEquals("[" + body + ", 3]\n", new String(exe.execute("select body, id from doc_table where id = 3".getBytes())));
+
+        // 回滚的插入写入的块在回滚时释放，所在的页面可以回收
+        dm.compact();
+        exe.execute("begin".getBytes());
+        exe.execute(("insert into doc_table values 4 '" + body + "'").getBytes());
+        exe.execute("abort".getBytes());
+        assertTrue(dm.compact() > 0);
+        assertEquals("", new String(exe.execute("select id from doc_table where id = 4".getBytes())));
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        new File(opath + ".db").delete();
+        new File(opath + ".bt").delete();
+        new File(opath + ".log").delete();
+        new File(opath + ".xid").delete();
+        new File(opath + ".fsm").delete();
+    }
+
+    @Test
+    public void testHotUpdate() throws Exception {
+        String hpath = "/tmp/mydb_hot";
+        TransactionManager tm = TransactionManager.create(hpath);
+        DataManager dm = DataManager.create(hpath, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(hpath, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table counter id int32, cnt int32 (index id)".getBytes());
+        exe.execute("insert into counter values 1 0".getBytes());
+
+        Executor reader = new Executor(tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        byte[] select = "select * from counter where id > 0".getBytes();
+        assertEquals("[1, 0]\n", new String(reader.execute(select)));
+
+        // 只改非索引字段，新版本接在版本链上，索引中始终只有一项
+        for (int i = 1; i <= 50; i++) {
+            exe.execute(("update counter set cnt = " + i + " where id = 1").getBytes());
+        }
+        while(tbm.vacuum() > 0);
+        assertEquals("[1, 0]\n", new String(reader.execute(select)));
+        assertEquals("[1, 50]\n", new String(exe.execute(select)));
+
+        reader.execute("commit".getBytes());
+        while(tbm.vacuum() > 0);
+        assertEquals("[1, 50]\n", new String(exe.execute(select)));
+
+        // 回滚的更新不影响版本链
+        exe.execute("begin".getBytes());
+        exe.execute("update counter set cnt = 100 where id = 1".getBytes());
+        exe.execute("abort".getBytes());
+        exe.execute("update counter set cnt = 51 where id = 1".getBytes());
+        assertEquals("[1, 51]\n", new String(exe.execute(select)));
+
+        // 回滚的新版本被摘除并释放：被更新的版本重新成为链尾，删除后整条链可以释放
+        long xid = vm.begin(0);
+        long root = vm.insert(xid, "v0".getBytes());
+        vm.commit(xid);
+        xid = vm.begin(0);
+        long aborted = vm.update(xid, root, "v1".getBytes());
+        vm.abort(xid);
+        assertNull(dm.read(aborted));
+        xid = vm.begin(0);
+        assertEquals("v0", new String(vm.read(xid, root)));
+        assertTrue(vm.delete(xid, root));
+        vm.commit(xid);
+        assertTrue(vm.prune(root, vm.getHorizon()).chainFreed);
+
+        // 索引字段改变时插入新的索引项，整条旧链被清理
+        exe.execute("update counter set id = 2 where id = 1".getBytes());
+        while(tbm.vacuum() > 0);
+        assertEquals("[2, 51]\n", new String(exe.execute(select)));
+        exe.execute("delete from counter where id = 2".getBytes());
+        while(tbm.vacuum() > 0);
+        assertEquals("", new String(exe.execute(select)));
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        new File(hpath + ".db").delete();
+        new File(hpath + ".bt").delete();
+        new File(hpath + ".log").delete();
+        new File(hpath + ".xid").delete();
+        new File(hpath + ".fsm").delete();
+    }
 }
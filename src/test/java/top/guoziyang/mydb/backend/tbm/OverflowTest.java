@@ -0,0 +1,46 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.MockTransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+public class OverflowTest {
+
+    @Test
+    public void testTwoChunksPerPage() throws Exception {
+        String path = "/tmp/TestOverflowChunks";
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE * 10, new MockTransactionManager());
+        byte[] data = new byte[Overflow.chunkSize(dm.getPageSize()) * 2];
+        new Random(1).nextBytes(data);
+
+        byte[] ptr = Overflow.store(dm, TransactionManagerImpl.SUPER_XID, data);
+        Overflow of = Overflow.parse(dm, ptr, 0);
+        // 两块放在同一个页面
+        long first = of.firstChunk();
+        DataItem di = dm.read(first);
+        SubArray sa = di.data();
+        long second = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+        di.release();
+        assertEquals(first >>> 32, second >>> 32);
+        assertArrayEquals(data, of.readBytes());
+
+        dm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".log.0").delete();
+        new File(path + ".fsm").delete();
+    }
+}
@@ -0,0 +1,108 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.parser.Parser;
+import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.tbm.Field.ParseValueRes;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+/**
+ * 比较两种读取记录的方式每行分配的字节数和耗时
+ * copy: 先把版本数据拷贝成 byte[]，再逐字段 copyOfRange 剩余部分解析，拷贝量与字段数成平方关系
+ * view: 持有版本期间直接在页面缓冲区上逐字段解析
+ * 分配量由 com.sun.management.ThreadMXBean 统计当前线程的累计分配得到
+ *
+ * 运行: java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.tbm.RowDecodeBenchmark [字段数] [行数]
+ */
+public class RowDecodeBenchmark {
+
+    private static final int ROUNDS = 20;
+    private static final com.sun.management.ThreadMXBean MX =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Work {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int columns = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        String path = "/tmp/row_decode_bench";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 64L << 20, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+
+        StringBuilder sql = new StringBuilder("create table wide ");
+        for (int i = 0; i < columns; i++) {
+            sql.append(i == 0 ? "" : ", ").append("c").append(i).append(" int64");
+        }
+        sql.append(" (index c0)");
+        long xid = TransactionManagerImpl.SUPER_XID;
+        Table table = Table.createTable(tbm, 0, xid, (Create)Parser.Parse(sql.toString().getBytes()));
+        for (int r = 0; r < rows; r++) {
+            StringBuilder values = new StringBuilder("insert into wide values");
+            for (int i = 0; i < columns; i++) {
+                values.append(' ').append((long)r * columns + i);
+            }
+            table.insert(xid, (Insert)Parser.Parse(values.toString().getBytes()));
+        }
+        List<Long> uids = table.fields.get(0).search(0, Long.MAX_VALUE);
+
+        System.out.printf("%d columns, %d rows%n", columns, rows);
+        System.out.printf("%-10s %-14s %-10s%n", "path", "bytes/row", "ns/row");
+        measure("copy", rows, () -> {
+            for (byte[] raw : vm.read(xid, uids)) {
+                Map<String, Object> entry = new HashMap<>();
+                int pos = 0;
+                for (Field field : table.fields) {
+                    ParseValueRes res = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length), 0);
+                    entry.put(field.fieldName, res.v);
+                    pos += res.shift;
+                }
+            }
+        });
+        measure("view", rows, () -> {
+            vm.read(xid, uids, view -> {
+                Map<String, Object> entry = new HashMap<>();
+                int pos = view.start;
+                for (Field field : table.fields) {
+                    ParseValueRes res = field.parserValue(view.raw, pos);
+                    entry.put(field.fieldName, res.v);
+                    pos += res.shift;
+                }
+                return entry;
+            });
+        });
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        for (String suffix : new String[]{".db", ".log", ".xid", ".fsm", ".bt"}) {
+            new File(path + suffix).delete();
+        }
+    }
+
+    private static void measure(String name, int rows, Work work) throws Exception {
+        for (int i = 0; i < ROUNDS; i++) work.run();     // 预热，使 JIT 完成编译
+        long tid = Thread.currentThread().getId();
+        long bytes = MX.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) work.run();
+        long ns = System.nanoTime() - start;
+        bytes = MX.getThreadAllocatedBytes(tid) - bytes;
+        long ops = (long)rows * ROUNDS;
+        System.out.printf("%-10s %-14.1f %-10.1f%n", name, (double)bytes / ops, (double)ns / ops);
+    }
+}